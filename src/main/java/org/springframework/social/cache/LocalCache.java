@@ -0,0 +1,122 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process {@link ValueCache} keeping the least recently used entries up to a fixed capacity.
+ * Entries also expire after a time to live, which bounds how long this instance can miss writes
+ * made through other instances of the application.
+ */
+public class LocalCache implements ValueCache {
+
+	private final CacheStatistics statistics = new CacheStatistics();
+
+	private final long timeToLiveMillis;
+
+	private final LinkedHashMap<String, CacheEntry> entries;
+
+	/**
+	 * @param maxEntries the maximum number of entries to keep
+	 * @param timeToLiveMillis how long an entry stays valid after it was put
+	 */
+	public LocalCache(final int maxEntries, long timeToLiveMillis) {
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+				if (size() > maxEntries) {
+					statistics.recordEviction();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public synchronized Object get(String key) {
+		CacheEntry entry = entries.get(key);
+		if (entry != null && entry.isExpired()) {
+			entries.remove(key);
+			statistics.recordEviction();
+			entry = null;
+		}
+		if (entry == null) {
+			statistics.recordMiss();
+			return null;
+		}
+		statistics.recordHit();
+		return entry.value;
+	}
+
+	@Override
+	public synchronized void put(String key, Object value) {
+		put(key, value, timeToLiveMillis);
+	}
+
+	@Override
+	public synchronized void put(String key, Object value, long timeToLiveMillis) {
+		entries.put(key, new CacheEntry(value, System.currentTimeMillis() + timeToLiveMillis));
+	}
+
+	@Override
+	public synchronized void putIfAbsent(String key, Object value) {
+		CacheEntry entry = entries.get(key);
+		if (entry == null || entry.isExpired()) {
+			put(key, value);
+		}
+	}
+
+	@Override
+	public synchronized void putIfGreater(String key, long value) {
+		CacheEntry entry = entries.get(key);
+		if (entry == null || entry.isExpired() || !(entry.value instanceof Long) || (Long) entry.value < value) {
+			put(key, value);
+		}
+	}
+
+	@Override
+	public synchronized void remove(String key) {
+		if (entries.remove(key) != null) {
+			statistics.recordEviction();
+		}
+	}
+
+	@Override
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+	private static final class CacheEntry {
+
+		private final Object value;
+
+		private final long expiresAt;
+
+		private CacheEntry(Object value, long expiresAt) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.cache;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+
+/**
+ * {@link ValueCache} backed by the AppEngine memcache, shared by all instances of the application.
+ * Memcache may drop values at any time; such evictions are only counted as misses.
+ */
+public class MemcacheCache implements ValueCache {
+
+	private static final int MAX_COMPARE_AND_SET_ATTEMPTS = 3;
+
+	private final CacheStatistics statistics = new CacheStatistics();
+
+	private final MemcacheService memcache;
+
+	private final int expirationSeconds;
+
+	/**
+	 * @param memcache the memcache service, preferably bound to a dedicated namespace
+	 * @param expirationSeconds how long a value stays cached after it was put
+	 */
+	public MemcacheCache(MemcacheService memcache, int expirationSeconds) {
+		this.memcache = memcache;
+		this.expirationSeconds = expirationSeconds;
+	}
+
+	@Override
+	public Object get(String key) {
+		Object value = memcache.get(key);
+		if (value == null) {
+			statistics.recordMiss();
+		} else {
+			statistics.recordHit();
+		}
+		return value;
+	}
+
+	@Override
+	public void put(String key, Object value) {
+		memcache.put(key, value, Expiration.byDeltaSeconds(expirationSeconds));
+	}
+
+	@Override
+	public void put(String key, Object value, long timeToLiveMillis) {
+		memcache.put(key, value, Expiration.byDeltaMillis((int) timeToLiveMillis));
+	}
+
+	@Override
+	public void putIfAbsent(String key, Object value) {
+		memcache.put(key, value, Expiration.byDeltaSeconds(expirationSeconds), SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Compares and sets with {@link MemcacheService#putIfUntouched}, giving up after a few lost races;
+	 * memcache errors are logged by the service and count as a failed store.
+	 */
+	@Override
+	public void putIfGreater(String key, long value) {
+		for (int attempt = 0; attempt < MAX_COMPARE_AND_SET_ATTEMPTS; attempt++) {
+			IdentifiableValue current = memcache.getIdentifiable(key);
+			if (current == null) {
+				if (memcache.put(key, value, Expiration.byDeltaSeconds(expirationSeconds), SetPolicy.ADD_ONLY_IF_NOT_PRESENT)) {
+					return;
+				}
+			} else if (current.getValue() instanceof Long && (Long) current.getValue() >= value) {
+				return;
+			} else if (memcache.putIfUntouched(key, current, value, Expiration.byDeltaSeconds(expirationSeconds))) {
+				return;
+			}
+		}
+		remove(key);
+	}
+
+	@Override
+	public void remove(String key) {
+		if (memcache.delete(key)) {
+			statistics.recordEviction();
+		}
+	}
+
+	@Override
+	public CacheStatistics getStatistics() {
+		return statistics;
+	}
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.cache;
+
+/**
+ * Cache of values by string key, e.g. an in-process LRU or memcache.
+ * Values are serializable and treated as immutable once put.
+ * @see LocalCache
+ * @see MemcacheCache
+ */
+public interface ValueCache {
+
+	/**
+	 * Returns the value cached under the given key.
+	 * @param key the cache key
+	 * @return the cached value, or null if there is none
+	 */
+	Object get(String key);
+
+	/**
+	 * Caches a value, replacing any value already cached under the key.
+	 * @param key the cache key
+	 * @param value the value to cache
+	 */
+	void put(String key, Object value);
+
+	/**
+	 * Caches a value for the given time rather than for as long as this cache keeps values, e.g. a marker that
+	 * must not outlive a short race.
+	 * @param key the cache key
+	 * @param value the value to cache
+	 * @param timeToLiveMillis how long the value stays cached
+	 */
+	void put(String key, Object value, long timeToLiveMillis);
+
+	/**
+	 * Caches a value only if no value is cached under the key yet.
+	 * @param key the cache key
+	 * @param value the value to cache
+	 */
+	void putIfAbsent(String key, Object value);
+
+	/**
+	 * Caches a number unless a greater one is cached under the key already, so that a cached version never goes
+	 * backwards when concurrent writers publish theirs out of order. If the number cannot be stored,
+	 * the value cached under the key is removed rather than left behind.
+	 * @param key the cache key
+	 * @param value the number to cache
+	 */
+	void putIfGreater(String key, long value);
+
+	/**
+	 * Removes the value cached under the given key, if any.
+	 * @param key the cache key
+	 */
+	void remove(String key);
+
+	/** Returns the hit, miss and eviction counters of this cache. */
+	CacheStatistics getStatistics();
+
+}
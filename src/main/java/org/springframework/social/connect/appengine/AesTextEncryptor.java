@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.crypto.codec.Hex;
+import org.springframework.security.crypto.codec.Utf8;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.security.crypto.keygen.BytesKeyGenerator;
+import org.springframework.security.crypto.keygen.KeyGenerators;
+
+/**
+ * AES {@link TextEncryptor} that reads and writes the same hex encoded text as
+ * {@link org.springframework.security.crypto.encrypt.Encryptors#text(CharSequence, CharSequence)},
+ * so tokens encrypted by either can be decrypted by the other.
+ * <p>
+ * The key is derived once, with PBKDF2, when the encryptor is created. Each thread keeps its own ciphers,
+ * so concurrent requests neither create ciphers per call nor wait on a shared one.
+ * {@link #decryptAll(String...)} decrypts several texts with a single cipher lookup.
+ */
+public class AesTextEncryptor implements TextEncryptor {
+
+	private static final String ALGORITHM = "AES/CBC/PKCS5Padding";
+
+	private static final int IV_LENGTH = 16;
+
+	private final SecretKey secretKey;
+
+	private final BytesKeyGenerator ivGenerator = KeyGenerators.secureRandom(IV_LENGTH);
+
+	private final ThreadLocal<Cipher> encryptors = new CipherThreadLocal();
+
+	private final ThreadLocal<Cipher> decryptors = new CipherThreadLocal();
+
+	/**
+	 * @param password the password the key is derived from
+	 * @param salt the hex encoded salt the key is derived with
+	 */
+	public AesTextEncryptor(CharSequence password, CharSequence salt) {
+		PBEKeySpec keySpec = new PBEKeySpec(password.toString().toCharArray(), Hex.decode(salt), 1024, 256);
+		try {
+			SecretKeyFactory keyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+			this.secretKey = new SecretKeySpec(keyFactory.generateSecret(keySpec).getEncoded(), "AES");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalArgumentException("Unable to derive the encryption key", e);
+		}
+	}
+
+	@Override
+	public String encrypt(String text) {
+		byte[] iv = ivGenerator.generateKey();
+		Cipher cipher = encryptors.get();
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, secretKey, new IvParameterSpec(iv));
+			byte[] encrypted = cipher.doFinal(Utf8.encode(text));
+			byte[] result = new byte[iv.length + encrypted.length];
+			System.arraycopy(iv, 0, result, 0, iv.length);
+			System.arraycopy(encrypted, 0, result, iv.length, encrypted.length);
+			return new String(Hex.encode(result));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to encrypt", e);
+		}
+	}
+
+	@Override
+	public String decrypt(String encryptedText) {
+		return decrypt(decryptors.get(), encryptedText);
+	}
+
+	/**
+	 * Decrypts each of the given texts in turn; null texts are passed through.
+	 * @return the decrypted texts, in the order given
+	 */
+	public String[] decryptAll(String... encryptedTexts) {
+		Cipher cipher = decryptors.get();
+		String[] texts = new String[encryptedTexts.length];
+		for (int i = 0; i < encryptedTexts.length; i++) {
+			texts[i] = encryptedTexts[i] != null ? decrypt(cipher, encryptedTexts[i]) : null;
+		}
+		return texts;
+	}
+
+	private String decrypt(Cipher cipher, String encryptedText) {
+		byte[] bytes = Hex.decode(encryptedText);
+		if (bytes.length < IV_LENGTH) {
+			throw new IllegalArgumentException("Encrypted text is too short");
+		}
+		try {
+			cipher.init(Cipher.DECRYPT_MODE, secretKey, new IvParameterSpec(bytes, 0, IV_LENGTH));
+			return Utf8.decode(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH));
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("Unable to decrypt", e);
+		}
+	}
+
+	private static final class CipherThreadLocal extends ThreadLocal<Cipher> {
+		@Override
+		protected Cipher initialValue() {
+			try {
+				return Cipher.getInstance(ALGORITHM);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Unable to create cipher " + ALGORITHM, e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Future;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.NoSuchConnectionException;
+import org.springframework.util.MultiValueMap;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.utils.FutureWrapper;
+
+/**
+ * {@link AsyncConnectionRepository} built on the {@link AsyncDatastoreService}.
+ * Every method only starts datastore calls before returning; mapping happens on the first call to {@code get}.
+ * Mapping and key derivation are shared with the synchronous {@link AppEngineConnectionRepository} of the same user.
+ */
+class AppEngineAsyncConnectionRepository implements AsyncConnectionRepository {
+
+	private final AppEngineConnectionRepository repository;
+
+	private final AsyncDatastoreService asyncDatastore;
+
+	public AppEngineAsyncConnectionRepository(AppEngineConnectionRepository repository, AsyncDatastoreService asyncDatastore) {
+		this.repository = repository;
+		this.asyncDatastore = asyncDatastore;
+	}
+
+	@Override
+	public Future<MultiValueMap<String, Connection<?>>> findAllConnections() {
+		return new FutureWrapper<List<ConnectionRecord>, MultiValueMap<String, Connection<?>>>(findConnectionRecords()) {
+			@Override
+			protected MultiValueMap<String, Connection<?>> wrap(List<ConnectionRecord> records) {
+				return repository.groupByProvider(mapConnections(records, null));
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	@Override
+	public Future<MultiValueMap<String, ConnectionSummary>> findConnectionSummaries() {
+		return new FutureWrapper<List<ConnectionRecord>, MultiValueMap<String, ConnectionSummary>>(findConnectionRecords()) {
+			@Override
+			protected MultiValueMap<String, ConnectionSummary> wrap(List<ConnectionRecord> records) {
+				return repository.summarize(records);
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	@Override
+	public Future<List<Connection<?>>> findConnections(final String providerId) {
+		return new FutureWrapper<List<ConnectionRecord>, List<Connection<?>>>(findConnectionRecords()) {
+			@Override
+			protected List<Connection<?>> wrap(List<ConnectionRecord> records) {
+				return mapConnections(records, providerId);
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	@Override
+	public <A> Future<Connection<A>> findPrimaryConnection(Class<A> apiType) {
+		final String providerId = repository.getProviderId(apiType);
+		return new FutureWrapper<List<ConnectionRecord>, Connection<A>>(findConnectionRecords()) {
+			@Override
+			@SuppressWarnings("unchecked")
+			protected Connection<A> wrap(List<ConnectionRecord> records) {
+				for (ConnectionRecord record : records) {
+					if (record.getProviderId().equals(providerId) && record.isPrimary()) {
+						return (Connection<A>) repository.mapConnection(record);
+					}
+				}
+				return null;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	@Override
+	public Future<Connection<?>> getConnection(final ConnectionKey connectionKey) {
+		return new FutureWrapper<Entity, Connection<?>>(asyncDatastore.get(repository.createKey(connectionKey))) {
+			@Override
+			protected Connection<?> wrap(Entity entity) {
+				return repository.connectionMapper.mapEntity(entity);
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause instanceof EntityNotFoundException ? new NoSuchConnectionException(connectionKey) : cause;
+			}
+		};
+	}
+
+	@Override
+	public Future<Map<ConnectionKey, Connection<?>>> getConnections(Collection<ConnectionKey> connectionKeys) {
+		final Map<ConnectionKey, Key> keys = new LinkedHashMap<ConnectionKey, Key>();
+		for (ConnectionKey connectionKey : connectionKeys) {
+			keys.put(connectionKey, repository.createKey(connectionKey));
+		}
+		return new FutureWrapper<Map<Key, Entity>, Map<ConnectionKey, Connection<?>>>(asyncDatastore.get(keys.values())) {
+			@Override
+			protected Map<ConnectionKey, Connection<?>> wrap(Map<Key, Entity> entities) {
+				Map<ConnectionKey, Connection<?>> connections = new LinkedHashMap<ConnectionKey, Connection<?>>();
+				for (Entry<ConnectionKey, Key> entry : keys.entrySet()) {
+					Entity entity = entities.get(entry.getValue());
+					if (entity != null) {
+						connections.put(entry.getKey(), repository.connectionMapper.mapEntity(entity));
+					}
+				}
+				return connections;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	/**
+	 * Starts loading the user's connection records from the datastore: a get of the {@code User} entity when
+	 * connections are denormalized onto it, an ancestor query otherwise. Nothing is waited for before the future
+	 * is returned, so the connection cache, which is read synchronously, is left to the synchronous repository.
+	 */
+	private Future<List<ConnectionRecord>> findConnectionRecords() {
+		return repository.isDenormalizeConnections() ? getDenormalizedRecords() : queryConnectionRecords();
+	}
+
+	private Future<List<ConnectionRecord>> queryConnectionRecords() {
+		return DatastoreUtils.queryForListAsync(
+				asyncDatastore.prepare(repository.createConnectionsQuery()), FetchOptions.Builder.withDefaults(), repository.recordMapper);
+	}
+
+	/**
+	 * Gets the connections denormalized onto the user's {@code User} entity, falling back to a synchronous
+	 * ancestor query when the entity does not exist or holds none yet.
+	 */
+	private Future<List<ConnectionRecord>> getDenormalizedRecords() {
+		return new FutureWrapper<Entity, List<ConnectionRecord>>(asyncDatastore.get(repository.getUserKey())) {
+			@Override
+			protected List<ConnectionRecord> wrap(Entity user) {
+				List<ConnectionRecord> records = AppEngineConnectionRepository.getDenormalizedRecords(user);
+				return records != null ? records : repository.queryConnectionRecords();
+			}
+
+			@Override
+			protected List<ConnectionRecord> absorbParentException(Throwable cause) throws Throwable {
+				if (cause instanceof EntityNotFoundException) {
+					return repository.queryConnectionRecords();
+				}
+				throw cause;
+			}
+
+			@Override
+			protected Throwable convertException(Throwable cause) {
+				return cause;
+			}
+		};
+	}
+
+	/** Maps the records of the given provider, or all records if providerId is null. */
+	private List<Connection<?>> mapConnections(List<ConnectionRecord> records, String providerId) {
+		List<Connection<?>> connections = new ArrayList<Connection<?>>(records.size());
+		for (ConnectionRecord record : records) {
+			if (providerId == null || record.getProviderId().equals(providerId)) {
+				connections.add(repository.mapConnection(record));
+			}
+		}
+		return connections;
+	}
+
+}
@@ -16,60 +16,71 @@
 package org.springframework.social.connect.appengine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.logging.Logger;
 
-import org.springframework.core.GenericTypeResolver;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionData;
 import org.springframework.social.connect.ConnectionFactory;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionKey;
-import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.DuplicateConnectionException;
 import org.springframework.social.connect.NoSuchConnectionException;
 import org.springframework.social.connect.NotConnectedException;
 import org.springframework.social.connect.appengine.DatastoreUtils.EntityMapper;
 import org.springframework.social.connect.intercept.ConnectionInterceptor;
+import org.springframework.social.connect.intercept.InterceptorDispatcher;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
 
+import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
-import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
-import com.google.appengine.api.datastore.PreparedQuery.TooManyResultsException;
+import com.google.appengine.api.datastore.PropertyProjection;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
 import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
 import com.google.appengine.api.datastore.Query.FilterOperator;
-import com.google.appengine.api.datastore.Query.SortDirection;
 import com.google.appengine.api.datastore.Transaction;
 import static com.google.appengine.api.datastore.TransactionOptions.Builder.*;
 
 
 /** @author Vladislav Tserman */
-class AppEngineConnectionRepository implements ConnectionRepository {
+class AppEngineConnectionRepository implements DatastoreConnectionRepository {
 	private static final Logger log = Logger.getLogger(AppEngineConnectionRepository.class.getName());
+
+	private static final int REMOVE_BATCH_SIZE = 500;
+
+	private static final int MAX_BATCH_GET_KEYS = 1000;
+
+	/** A cross-group transaction spans the user's entity group and those of the index entries it updates. */
+	private static final int INDEXED_REMOVE_BATCH_SIZE = ConnectionIndex.MAX_TRANSACTION_ENTITY_GROUPS - 1;
 	
 	private final DatastoreService datastore;	
 	private final String userId;
 	private final ConnectionFactoryLocator connectionFactoryLocator;
 	private final TextEncryptor textEncryptor;		
 	private final String kindPrefix;
-	private final MultiValueMap<Class<?>, ConnectionInterceptor<?>> interceptors = new LinkedMultiValueMap<Class<?>, ConnectionInterceptor<?>>();
+	private ConnectionInterceptorTable interceptors = ConnectionInterceptorTable.EMPTY;
 	private final Key userKey;
+	private ConnectionCache connectionCache;
+	private boolean denormalizeConnections;
+	private ConnectionIndex connectionIndex;
+	private InterceptorDispatcher interceptorDispatcher;
 		
 	public AppEngineConnectionRepository(String userId, ConnectionFactoryLocator connectionFactoryLocator, 
 			TextEncryptor textEncryptor, DatastoreService datastore, String kindPrefix)
@@ -93,16 +104,73 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 	
 	@Override
 	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		List<ConnectionRecord> records = findConnectionRecords();
+		List<Connection<?>> resultList = new ArrayList<Connection<?>>(records.size());
+		for (ConnectionRecord record : records) {
+			resultList.add(mapConnection(record));
+		}
+		return groupByProvider(resultList);
+	}
+
+	/** Creates the ancestor query for all connections of the user, ordered by providerId and rank. */
+	Query createConnectionsQuery() {
+		return new Query(getKind())
+			.setAncestor(userKey)
+			.addSort("providerId")
+			.addSort("rank");
+	}
+
+	/**
+	 * Loads every connection of the user, ordered by providerId and rank.
+	 * Tokens of the returned records are not decrypted.
+	 * When a {@link ConnectionCache} is set, the records are looked up there first,
+	 * under the current version of the user's entity group.
+	 */
+	List<ConnectionRecord> findConnectionRecords() {
+		String recordsCacheKey = getRecordsCacheKey();
+		List<ConnectionRecord> records = getCachedRecords(recordsCacheKey);
+		if (records == null) {
+			records = loadConnectionRecords();
+			cacheRecords(recordsCacheKey, records);
+		}
+		return records;
+	}
+
+	/**
+	 * Loads every connection of the user from the datastore: with a single get of the {@code User} entity
+	 * when connections are denormalized onto it, with an ancestor query otherwise or when the entity predates it.
+	 */
+	private List<ConnectionRecord> loadConnectionRecords() {
+		if (denormalizeConnections) {
+			List<ConnectionRecord> records = getDenormalizedRecords(getUserEntity(null));
+			if (records != null) {
+				return records;
+			}
+		}
+		return queryConnectionRecords();
+	}
+
+	/** Loads every connection of the user with a single ancestor query, ordered by providerId and rank. */
+	List<ConnectionRecord> queryConnectionRecords() {
+		return DatastoreUtils.queryForList(datastore.prepare(createConnectionsQuery()), recordMapper);
+	}
+
+	/** Returns the connections denormalized onto the given {@code User} entity, or null if it holds none. */
+	static List<ConnectionRecord> getDenormalizedRecords(Entity user) {
+		Blob connections = (Blob) user.getProperty("connections");
+		return connections != null ? ConnectionRecordCodec.decode(connections) : null;
+	}
+
+	/**
+	 * Groups connections, ordered by providerId and rank, the way {@link #findAllConnections()} returns them:
+	 * every registered provider is present, those without connections map to an empty list.
+	 */
+	MultiValueMap<String, Connection<?>> groupByProvider(List<Connection<?>> resultList) {
 		MultiValueMap<String, Connection<?>> connections = new LinkedMultiValueMap<String, Connection<?>>();
 		Set<String> registeredProviderIds = connectionFactoryLocator.registeredProviderIds();
 		for (String registeredProviderId : registeredProviderIds) {
 			connections.put(registeredProviderId, Collections.<Connection<?>>emptyList());
 		}		
-		Query query = new Query(getKind())
-			.setAncestor(userKey)
-			.addSort("providerId")
-			.addSort("rank");		
-		List<Connection<?>> resultList = DatastoreUtils.queryForList(datastore.prepare(query), connectionMapper);
 		for (Connection<?> connection : resultList) {
 			String providerId = connection.getKey().getProviderId();
 			if (connections.get(providerId).size() == 0) {
@@ -113,9 +181,77 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 		return connections;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Reads the connection records when they are cached or denormalized onto the {@code User} entity,
+	 * otherwise runs a projection query for the listed properties, served from the index alone.
+	 */
+	@Override
+	public MultiValueMap<String, ConnectionSummary> findConnectionSummaries() {
+		if (isReadingAllRecords()) {
+			return summarize(findConnectionRecords());
+		}
+		// sort properties are projected too; the projection needs a composite index over all of them
+		Query query = createConnectionsQuery()
+			.addProjection(new PropertyProjection("providerId", String.class))
+			.addProjection(new PropertyProjection("rank", Long.class))
+			.addProjection(new PropertyProjection("providerUserId", String.class))
+			.addProjection(new PropertyProjection("displayName", String.class))
+			.addProjection(new PropertyProjection("profileUrl", String.class))
+			.addProjection(new PropertyProjection("imageUrl", String.class));
+		return groupSummariesByProvider(DatastoreUtils.queryForList(datastore.prepare(query), summaryMapper));
+	}
+
+	MultiValueMap<String, ConnectionSummary> summarize(List<ConnectionRecord> records) {
+		List<ConnectionSummary> summaries = new ArrayList<ConnectionSummary>(records.size());
+		for (ConnectionRecord record : records) {
+			summaries.add(ConnectionSummary.fromRecord(record));
+		}
+		return groupSummariesByProvider(summaries);
+	}
+
+	/** Groups summaries, ordered by providerId and rank, the same way as {@link #groupByProvider(List)}. */
+	private MultiValueMap<String, ConnectionSummary> groupSummariesByProvider(List<ConnectionSummary> summaries) {
+		MultiValueMap<String, ConnectionSummary> summariesByProvider = new LinkedMultiValueMap<String, ConnectionSummary>();
+		for (String registeredProviderId : connectionFactoryLocator.registeredProviderIds()) {
+			summariesByProvider.put(registeredProviderId, Collections.<ConnectionSummary>emptyList());
+		}
+		for (ConnectionSummary summary : summaries) {
+			String providerId = summary.getProviderId();
+			List<ConnectionSummary> providerSummaries = summariesByProvider.get(providerId);
+			if (providerSummaries == null || providerSummaries.size() == 0) {
+				summariesByProvider.put(providerId, new LinkedList<ConnectionSummary>());
+			}
+			summariesByProvider.add(providerId, summary);
+		}
+		return summariesByProvider;
+	}
+
+	/**
+	 * Whether lookups filter all connection records of the user, read from the cache or the {@code User} entity,
+	 * rather than run a query of their own.
+	 */
+	private boolean isReadingAllRecords() {
+		return connectionCache != null || denormalizeConnections;
+	}
+
+	Connection<?> mapConnection(ConnectionRecord record) {
+		return connectionMapper.mapRecord(record);
+	}
+
 	
 	@Override
 	public List<Connection<?>> findConnections(String providerId) {
+		if (isReadingAllRecords()) {
+			List<Connection<?>> connections = new ArrayList<Connection<?>>();
+			for (ConnectionRecord record : findConnectionRecords()) {
+				if (record.getProviderId().equals(providerId)) {
+					connections.add(mapConnection(record));
+				}
+			}
+			return connections;
+		}
 		Query query = new Query(getKind())
 			.setAncestor(userKey)
 			.setFilter(FilterOperator.EQUAL.of("providerId", providerId))
@@ -138,55 +274,29 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 			throw new IllegalArgumentException("Unable to execute find: no providerUsers provided");
 		}
 		
-		final Set<Entity> queryResultSet = new TreeSet<Entity>(new Comparator<Entity>() {
-			@Override
-			public int compare(Entity e1, Entity e2) {
-				String providerId1 = (String) e1.getProperty("providerId");
-				String providerId2 = (String) e2.getProperty("providerId");
-				int compareToResult = providerId1.compareTo(providerId2);
-				if (compareToResult != 0) return compareToResult;
-				Long rank1 = (Long) e1.getProperty("rank");
-				Long rank2 = (Long) e2.getProperty("rank");
-				return rank1.compareTo(rank2);
-			}
-		});
-		
-		//FIXME find more optimal way to query datastore
+		// every connection key is derivable, so batch gets replace a query per provider
+		List<Key> keys = new ArrayList<Key>();
 		for (Entry<String, List<String>> entry : providerUserIds.entrySet()) {
-			String providerId = entry.getKey();
-			final CompositeFilter filter = CompositeFilterOperator.and(
-				FilterOperator.EQUAL.of("providerId", providerId),
-				FilterOperator.IN.of("providerUserId", entry.getValue())
-			);
-			final Query query = new Query(getKind())
-				.setAncestor(userKey)
-				.setFilter(filter)
-				.addSort("providerId")
-				.addSort("rank");
-			queryResultSet.addAll(datastore.prepare(query).asList(
-					FetchOptions.Builder.withDefaults()));
-		}
-		
-		List<Connection<?>> resultList = new ArrayList<Connection<?>>(queryResultSet.size());
-		for (Entity entity : queryResultSet) {
-			resultList.add(connectionMapper.mapEntity(entity));
+			for (String providerUserId : entry.getValue()) {
+				keys.add(createKey(new ConnectionKey(entry.getKey(), providerUserId)));
+			}
 		}
+		Map<Key, Entity> entities = getInBatches(keys);
 		
 		MultiValueMap<String, Connection<?>> connectionsForUsers = new LinkedMultiValueMap<String, Connection<?>>();
-		for (Connection<?> connection : resultList) {
-			String providerId = connection.getKey().getProviderId();
-			List<String> userIds = providerUserIds.get(providerId);
-			List<Connection<?>> connections = connectionsForUsers.get(providerId);
-			if (connections == null) {
-				connections = new ArrayList<Connection<?>>(userIds.size());
-                for (String userId : userIds) {
-                    connections.add(null);
-                }
-				connectionsForUsers.put(providerId, connections);
+		int keyIndex = 0;
+		for (Entry<String, List<String>> entry : providerUserIds.entrySet()) {
+			List<String> userIds = entry.getValue();
+			List<Connection<?>> connections = null;
+			for (int i = 0; i < userIds.size(); i++) {
+				Entity entity = entities.get(keys.get(keyIndex++));
+				if (entity == null) continue;
+				if (connections == null) {
+					connections = new ArrayList<Connection<?>>(Collections.<Connection<?>>nCopies(userIds.size(), null));
+					connectionsForUsers.put(entry.getKey(), connections);
+				}
+				connections.set(i, connectionMapper.mapEntity(entity));
 			}
-			String providerUserId = connection.getKey().getProviderUserId();
-			int connectionIndex = userIds.indexOf(providerUserId);
-			connections.set(connectionIndex, connection);
 		}
 		return connectionsForUsers;
 	}
@@ -194,25 +304,44 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 	
 	@Override
 	public Connection<?> getConnection(ConnectionKey connectionKey) {
-		final CompositeFilter filter = CompositeFilterOperator.and(
-			FilterOperator.EQUAL.of("providerId", connectionKey.getProviderId()),
-			FilterOperator.EQUAL.of("providerUserId", connectionKey.getProviderUserId())
-		);
-		final Query query = new Query(getKind())
-			.setAncestor(userKey)
-			.setFilter(filter);
-		Entity singleEntity;
 		try {
-			singleEntity = datastore.prepare(query).asSingleEntity();			
-		} catch (TooManyResultsException ex) {
-			log.warning("Too many results were found for query " + query.toString());
+			return connectionMapper.mapEntity(datastore.get(createKey(connectionKey)));
+		} catch (EntityNotFoundException e) {
 			throw new NoSuchConnectionException(connectionKey);
 		}
-		if (singleEntity == null) throw new NoSuchConnectionException(connectionKey);
-		return connectionMapper.mapEntity(singleEntity);
 	}
 
 	
+	@Override
+	public Map<ConnectionKey, Connection<?>> getConnections(Collection<ConnectionKey> connectionKeys) {
+		Map<ConnectionKey, Key> keys = new LinkedHashMap<ConnectionKey, Key>();
+		for (ConnectionKey connectionKey : connectionKeys) {
+			keys.put(connectionKey, createKey(connectionKey));
+		}
+		Map<Key, Entity> entities = getInBatches(new ArrayList<Key>(keys.values()));
+		Map<ConnectionKey, Connection<?>> connections = new LinkedHashMap<ConnectionKey, Connection<?>>();
+		for (Entry<ConnectionKey, Key> entry : keys.entrySet()) {
+			Entity entity = entities.get(entry.getValue());
+			if (entity != null) {
+				connections.put(entry.getKey(), connectionMapper.mapEntity(entity));
+			}
+		}
+		return connections;
+	}
+
+	
+	/** Gets entities by key, at most {@value #MAX_BATCH_GET_KEYS} keys per call, which is all the datastore accepts. */
+	private Map<Key, Entity> getInBatches(List<Key> keys) {
+		if (keys.size() <= MAX_BATCH_GET_KEYS) {
+			return datastore.get(keys);
+		}
+		Map<Key, Entity> entities = new HashMap<Key, Entity>();
+		for (int from = 0; from < keys.size(); from += MAX_BATCH_GET_KEYS) {
+			entities.putAll(datastore.get(keys.subList(from, Math.min(from + MAX_BATCH_GET_KEYS, keys.size()))));
+		}
+		return entities;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public <A> Connection<A> getConnection(Class<A> apiType, String providerUserId) {
@@ -234,6 +363,14 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 	
 	
 	private Connection<?> findPrimaryConnection(String providerId) {
+		if (isReadingAllRecords()) {
+			for (ConnectionRecord record : findConnectionRecords()) {
+				if (record.getProviderId().equals(providerId) && record.isPrimary()) {
+					return mapConnection(record);
+				}
+			}
+			return null;
+		}
 		final CompositeFilter filter = CompositeFilterOperator.and(
 			FilterOperator.EQUAL.of("providerId", providerId), 
 			FilterOperator.EQUAL.of("rank", 1L)
@@ -258,22 +395,11 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 	@Override
 	public void addConnection(Connection<?> connection) {
 		ConnectionData data = connection.createData();				
-		long rank = 1;
-		// Find max rank -> Query sorting by rank in desc order and limiting resultset to single entity
-		final Query query = new Query(getKind())
-			.setAncestor(userKey)
-			.setFilter(FilterOperator.EQUAL.of("providerId", data.getProviderId()))
-			.addSort("rank", SortDirection.DESCENDING);
-		List<Entity> resultList = datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1));
-		Entity singleEntity = (resultList != null && resultList.size() > 0) ? resultList.get(0) : null;
-		if (singleEntity != null) rank += (Long) singleEntity.getProperty("rank");
-		
 		String connectionKeyName = createConnectionKeyName(userId, connection.getKey());
 		Entity userConnection = new Entity(getKind(), connectionKeyName, userKey);
 		//userConnection.setProperty("userId", userId);
 		userConnection.setProperty("providerId", data.getProviderId());
 		userConnection.setProperty("providerUserId", data.getProviderUserId());
-		userConnection.setProperty("rank", rank);
 		userConnection.setProperty("displayName", data.getDisplayName());
 		userConnection.setProperty("profileUrl", data.getProfileUrl());
 		userConnection.setProperty("imageUrl", data.getImageUrl());
@@ -286,23 +412,38 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 			interceptor.beforeCreate(userId, connection);
 		}
 		
-		final Key key = new KeyFactory.Builder(userKey).addChild(getKind(), connectionKeyName).getKey();
-		Transaction txn = datastore.beginTransaction();
-		try {			
-			try {
-				datastore.get(txn, key);
-				throw new DuplicateConnectionException(connection.getKey());
-			} catch (EntityNotFoundException e) {
-				datastore.put(txn, userConnection);
-				txn.commit();
+		long version;
+		Transaction txn = beginTransaction();
+		try {
+			// the duplicate check and the rank both come from the entity group as read within the transaction,
+			// so concurrent connects either see each other or fail to commit
+			Entity user = getUserEntity(txn);
+			List<ConnectionRecord> records = getRecordsForUpdate(txn, user);
+			long rank = 1;
+			for (ConnectionRecord record : records) {
+				if (record.getKey().equals(connection.getKey())) {
+					throw new DuplicateConnectionException(connection.getKey());
+				}
+				if (record.getProviderId().equals(data.getProviderId()) && record.getRank() >= rank) {
+					rank = record.getRank() + 1;
+				}
+			}
+			userConnection.setProperty("rank", rank);
+			if (connectionIndex != null) {
+				connectionIndex.addUserId(txn, connection.getKey(), userId);
 			}
+			version = incrementVersion(user);
+			updateDenormalizedRecords(txn, user, records, Collections.<ConnectionKey>emptySet(), ConnectionRecord.fromEntity(userConnection));
+			datastore.put(txn, Arrays.asList(userConnection, user));
+			txn.commit();
 		} finally {
 			if (txn.isActive()) txn.rollback();
 		}
-				
-		for (ConnectionInterceptor interceptor : interceptingConnectionsTo(connection)) {
-			interceptor.afterCreate(userId, connection);
+		versionCommitted(version);
+		if (connectionIndex != null) {
+			connectionIndex.evict(Collections.singleton(connection.getKey()));
 		}
+		afterCreate(connection);
 	}
 
 	
@@ -314,10 +455,10 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 		for (ConnectionInterceptor interceptor : interceptingConnectionsTo(connection)) {
 			interceptor.beforeUpdate(userId, connection);
 		}
-		String connectionKeyName = createConnectionKeyName(userId, connection.getKey());
-		final Key connectionKey = new KeyFactory.Builder(userKey).addChild(getKind(), connectionKeyName).getKey();
+		final Key connectionKey = createKey(connection.getKey());
 		Transaction txn = datastore.beginTransaction();
         boolean updated = false;
+        long version = 0;
 		try {			
 			Entity entity = datastore.get(txn, connectionKey);
 			entity.setProperty("displayName", data.getDisplayName());
@@ -327,7 +468,10 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 			entity.setProperty("secret", encrypt(data.getSecret()));
 			entity.setProperty("refreshToken", encrypt(data.getRefreshToken()));
 			entity.setProperty("expireTime", data.getExpireTime());			
-			datastore.put(txn, entity);
+			Entity user = getUserEntity(txn);
+			version = incrementVersion(user);
+			updateDenormalizedRecords(txn, user, null, Collections.singleton(connection.getKey()), ConnectionRecord.fromEntity(entity));
+			datastore.put(txn, Arrays.asList(entity, user));
 			txn.commit();
             updated = true;
 		} catch (EntityNotFoundException e) {
@@ -340,47 +484,98 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 		}
 
         if (updated) {
-		    for (ConnectionInterceptor interceptor : interceptingConnectionsTo(connection)) {
-			    interceptor.afterUpdate(userId, connection);
-		    }
+            versionCommitted(version);
+		    afterUpdate(connection);
         }
 	}
 
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Connections are deleted in batches, each in its own transaction, with the interceptors called before and
+	 * after each batch. If a batch fails, the batches before it stay removed, with all their callbacks made,
+	 * while it and those after it are left in place, without an "after" callback; removing again finishes the job.
+	 * A provider whose connection factory is no longer registered has no interceptors, so that its connections
+	 * can still be removed.
+	 */
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
 	public void removeConnections(String providerId) {
 		final Query query = new Query(getKind())		
 			.setAncestor(userKey)
-			.setFilter(FilterOperator.EQUAL.of("providerId", providerId));
-		Map<Key, Connection<?>> resultMap = DatastoreUtils.queryForMap(
-				datastore.prepare(query), connectionMapper);
-		Set<Key> keys = resultMap.keySet();
+			.setFilter(FilterOperator.EQUAL.of("providerId", providerId))
+			.setKeysOnly();
+		List<Key> keys = DatastoreUtils.queryForList(datastore.prepare(query), keyMapper);
 		if (keys.isEmpty()) return;
 		
-		Collection<Connection<?>> connections = resultMap.values();
-		for (ConnectionInterceptor interceptor : interceptingConnectionsTo(connections.iterator().next())) {
-			interceptor.beforeRemove(userId, connections);
+		List<ConnectionInterceptor<?>> providerInterceptors = interceptorsFor(providerId);
+		int batchSize = connectionIndex != null ? INDEXED_REMOVE_BATCH_SIZE : REMOVE_BATCH_SIZE;
+		for (int from = 0; from < keys.size(); from += batchSize) {
+			List<Key> batch = keys.subList(from, Math.min(from + batchSize, keys.size()));
+			if (providerInterceptors.isEmpty()) {
+				// without interceptors the connections themselves are not needed, their keys will do
+				removeConnections(providerId, batch);
+				continue;
+			}
+			List<Connection<?>> connections = new ArrayList<Connection<?>>(batch.size());
+			for (Entity entity : datastore.get(batch).values()) {
+				connections.add(connectionMapper.mapEntity(entity));
+			}
+			for (ConnectionInterceptor interceptor : providerInterceptors) {
+				interceptor.beforeRemove(userId, connections);
+			}
+			removeConnections(providerId, batch);
+			if (!connections.isEmpty()) {
+				afterRemove(connections);
+			}
 		}
-		
-		Transaction txn = datastore.beginTransaction(withXG(true));
+	}
+
+	/** Returns the interceptors of the given provider's connections, or none if its connection factory is not registered. */
+	private List<ConnectionInterceptor<?>> interceptorsFor(String providerId) {
+		try {
+			return interceptors.interceptorsFor(connectionFactoryLocator.getConnectionFactory(providerId));
+		} catch (IllegalArgumentException e) {
+			return Collections.emptyList();
+		}
+	}
+
+	/**
+	 * Deletes a batch of the user's connections to a provider in one transaction, which spans the user's entity group alone
+	 * unless the reverse index, with an entity group per provider user, is maintained too.
+	 */
+	private void removeConnections(String providerId, List<Key> keys) {
+		List<ConnectionKey> removedKeys = new ArrayList<ConnectionKey>(keys.size());
+		for (Key key : keys) {
+			removedKeys.add(new ConnectionKey(providerId, getProviderUserId(key, providerId)));
+		}
+		long version;
+		Transaction txn = beginTransaction();
 		try {
 			datastore.delete(txn, keys);
+			Entity user = getUserEntity(txn);
+			version = incrementVersion(user);
+			updateDenormalizedRecords(txn, user, null, removedKeys, null);
+			if (connectionIndex != null) {
+				connectionIndex.removeUserId(txn, removedKeys, userId);
+			}
+			datastore.put(txn, user);
 			txn.commit();			
 		} finally {
 			if (txn.isActive()) txn.rollback();
 		}
-		for (ConnectionInterceptor interceptor : interceptingConnectionsTo(connections.iterator().next())) {
-			interceptor.afterRemove(userId, connections);
+		versionCommitted(version);
+		if (connectionIndex != null) {
+			connectionIndex.evict(removedKeys);
 		}
 	}
 
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
 	public void removeConnection(ConnectionKey connectionKey) {
-		String connectionKeyName = createConnectionKeyName(userId, connectionKey);
-		final Key key = new KeyFactory.Builder(userKey).addChild(getKind(), connectionKeyName).getKey();
-		Transaction txn = datastore.beginTransaction();
+		final Key key = createKey(connectionKey);
+		Transaction txn = beginTransaction();
 		try {			
 			final Entity entity = datastore.get(txn, key);
 			Connection<?> connection = connectionMapper.mapEntity(entity);
@@ -388,10 +583,19 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 				interceptor.beforeRemove(userId, Collections.singletonList(connection));
 			}
 			datastore.delete(txn, entity.getKey());
+			Entity user = getUserEntity(txn);
+			long version = incrementVersion(user);
+			updateDenormalizedRecords(txn, user, null, Collections.singleton(connectionKey), null);
+			if (connectionIndex != null) {
+				connectionIndex.removeUserId(txn, Collections.singleton(connectionKey), userId);
+			}
+			datastore.put(txn, user);
 			txn.commit();
-			for (ConnectionInterceptor interceptor : interceptingConnectionsTo(connection)) {
-				interceptor.afterRemove(userId, Collections.singletonList(connection));
+			versionCommitted(version);
+			if (connectionIndex != null) {
+				connectionIndex.evict(Collections.singleton(connectionKey));
 			}
+			afterRemove(Collections.<Connection<?>>singletonList(connection));
 		} catch (EntityNotFoundException e) {
 			log.warning("There was problem deleted connection " + connectionKey.toString() + ". No such connection exists.");			
 		} finally {
@@ -399,37 +603,213 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 		}		
 	}
 	
-	private final ServiceProviderConnectionMapper connectionMapper = new ServiceProviderConnectionMapper();
+	/** Begins a write transaction, cross-group when the reverse index is maintained along with the user's connections. */
+	private Transaction beginTransaction() {
+		return connectionIndex != null ? datastore.beginTransaction(withXG(true)) : datastore.beginTransaction();
+	}
+
+	/**
+	 * Reads the parent {@code User} entity, which holds the version of the user's entity group.
+	 * Returns a new, unsaved entity for users whose connections were written before it existed.
+	 */
+	private Entity getUserEntity(Transaction txn) {
+		try {
+			return datastore.get(txn, userKey);
+		} catch (EntityNotFoundException e) {
+			return new Entity(userKey);
+		}
+	}
+
+	private static long getVersion(Entity user) {
+		Long version = (Long) user.getProperty("version");
+		return version != null ? version : 0L;
+	}
+
+	/** Bumps the version of the user's entity group; every write transaction calls this before committing. */
+	static long incrementVersion(Entity user) {
+		long version = getVersion(user) + 1;
+		user.setUnindexedProperty("version", version);
+		return version;
+	}
+
+	/**
+	 * Applies a write to the connections denormalized onto the {@code User} entity: records under the removed keys
+	 * are dropped and the added record, if any, is put in providerId and rank order. The current records are those
+	 * already read within the write transaction, if given, or are read with {@link #getRecordsForUpdate}.
+	 * Without denormalization any list left over from an earlier configuration is dropped instead, so it can never go stale.
+	 */
+	private void updateDenormalizedRecords(Transaction txn, Entity user, List<ConnectionRecord> records,
+			Collection<ConnectionKey> removedKeys, ConnectionRecord addedRecord) {
+		if (!denormalizeConnections) {
+			user.removeProperty("connections");
+			return;
+		}
+		if (records == null) {
+			records = getRecordsForUpdate(txn, user);
+		}
+		List<ConnectionRecord> updated = new ArrayList<ConnectionRecord>(records.size() + 1);
+		for (ConnectionRecord record : records) {
+			if (!removedKeys.contains(record.getKey())) {
+				updated.add(record);
+			}
+		}
+		if (addedRecord != null) {
+			updated.add(addedRecord);
+		}
+		Collections.sort(updated, RECORD_ORDER);
+		user.setUnindexedProperty("connections", ConnectionRecordCodec.encode(updated));
+	}
+
+	/**
+	 * Reads every connection of the user within the given transaction: from the connections denormalized onto
+	 * the {@code User} entity, or with an ancestor query when it holds none.
+	 */
+	private List<ConnectionRecord> getRecordsForUpdate(Transaction txn, Entity user) {
+		List<ConnectionRecord> records = denormalizeConnections ? getDenormalizedRecords(user) : null;
+		if (records == null) {
+			records = DatastoreUtils.queryForList(datastore.prepare(txn, createConnectionsQuery()), recordMapper);
+		}
+		return records;
+	}
+
+	private static final Comparator<ConnectionRecord> RECORD_ORDER = new Comparator<ConnectionRecord>() {
+		@Override
+		public int compare(ConnectionRecord r1, ConnectionRecord r2) {
+			int result = r1.getProviderId().compareTo(r2.getProviderId());
+			if (result == 0) {
+				result = r1.getRank() < r2.getRank() ? -1 : (r1.getRank() == r2.getRank() ? 0 : 1);
+			}
+			return result;
+		}
+	};
+
+	/**
+	 * Publishes a committed version, so that cached connections of older versions are no longer read.
+	 * The cached version only moves forward, even when concurrent writes commit and publish in different orders;
+	 * if it cannot be published, the cached version is removed so that the next read takes it from the datastore.
+	 */
+	private void versionCommitted(long version) {
+		if (connectionCache != null) {
+			connectionCache.putIfGreater(getVersionCacheKey(), version);
+		}
+	}
+
+	/**
+	 * Returns the current version of the user's entity group, reading it from the datastore on a cache miss.
+	 * A version read from the datastore never replaces a newer one published by a concurrent write.
+	 */
+	private long getCachedVersion() {
+		String versionCacheKey = getVersionCacheKey();
+		Long version = (Long) connectionCache.get(versionCacheKey);
+		if (version == null) {
+			version = getVersion(getUserEntity(null));
+			connectionCache.putIfGreater(versionCacheKey, version);
+		}
+		return version;
+	}
+
+	/** Returns the key the user's connections are cached under at the current version, or null without a cache. */
+	String getRecordsCacheKey() {
+		return connectionCache != null ? getCacheKey() + "@" + getCachedVersion() : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	List<ConnectionRecord> getCachedRecords(String recordsCacheKey) {
+		return recordsCacheKey != null ? (List<ConnectionRecord>) connectionCache.get(recordsCacheKey) : null;
+	}
+
+	void cacheRecords(String recordsCacheKey, List<ConnectionRecord> records) {
+		if (recordsCacheKey != null) {
+			connectionCache.put(recordsCacheKey, records);
+		}
+	}
+
+	private String getCacheKey() {
+		return KeyFactory.keyToString(userKey);
+	}
+
+	private String getVersionCacheKey() {
+		return getVersionCacheKey(userKey);
+	}
+
+	/** Returns the key the version of the given user's entity group is cached under. */
+	static String getVersionCacheKey(Key userKey) {
+		return KeyFactory.keyToString(userKey) + "@version";
+	}
+
+	private final EntityMapper<ConnectionSummary> summaryMapper = new EntityMapper<ConnectionSummary>() {
+		@Override
+		public ConnectionSummary mapEntity(Entity entity) {
+			return new ConnectionSummary(
+				(String) entity.getProperty("providerId"),
+				(String) entity.getProperty("providerUserId"),
+				(String) entity.getProperty("displayName"),
+				(String) entity.getProperty("profileUrl"),
+				(String) entity.getProperty("imageUrl")
+			);
+		}
+	};
+
+	private final EntityMapper<Key> keyMapper = new EntityMapper<Key>() {
+		@Override
+		public Key mapEntity(Entity entity) {
+			return entity.getKey();
+		}
+	};
+
+	final ServiceProviderConnectionMapper connectionMapper = new ServiceProviderConnectionMapper();
+	
+	final EntityMapper<ConnectionRecord> recordMapper = new EntityMapper<ConnectionRecord>() {
+		@Override
+		public ConnectionRecord mapEntity(Entity entity) {
+			return ConnectionRecord.fromEntity(entity);
+		}
+	};
 	
-	private final class ServiceProviderConnectionMapper implements EntityMapper<Connection<?>> {
+	final class ServiceProviderConnectionMapper implements EntityMapper<Connection<?>> {
 
 		@Override
 		public Connection<?> mapEntity(Entity entity) {
-			ConnectionData connectionData = mapConnectionData(entity);
-			ConnectionFactory<?> connectionFactory = connectionFactoryLocator.getConnectionFactory(connectionData.getProviderId());
-			return connectionFactory.createConnection(connectionData);			
+			return mapRecord(ConnectionRecord.fromEntity(entity));
+		}
+		
+		/** Maps the record to a connection that decrypts its tokens only once they are needed. */
+		public Connection<?> mapRecord(ConnectionRecord record) {
+			return createLazyConnection(record, connectionFactoryLocator.getConnectionFactory(record.getProviderId()));
 		}
 		
-		private ConnectionData mapConnectionData(Entity entity) {
+		private <A> Connection<A> createLazyConnection(ConnectionRecord record, ConnectionFactory<A> connectionFactory) {
+			return new LazyConnection<A>(record, connectionFactory, this);
+		}
+		
+		ConnectionData mapConnectionData(ConnectionRecord record) {
+			String[] tokens = decryptAll(record.getAccessToken(), record.getSecret(), record.getRefreshToken());
 			return new ConnectionData(
-				(String) entity.getProperty("providerId"), 
-				(String) entity.getProperty("providerUserId"), 
-				(String) entity.getProperty("displayName"), 
-				(String) entity.getProperty("profileUrl"), 
-				(String) entity.getProperty("imageUrl"),
-				decrypt((String) entity.getProperty("accessToken")), 
-				decrypt((String) entity.getProperty("secret")), 
-				decrypt((String) entity.getProperty("refreshToken")), 
-				(Long) entity.getProperty("expireTime")
+				record.getProviderId(), 
+				record.getProviderUserId(), 
+				record.getDisplayName(), 
+				record.getProfileUrl(), 
+				record.getImageUrl(),
+				tokens[0], 
+				tokens[1], 
+				tokens[2], 
+				record.getExpireTime()
 			);
 		}
 		
-		private String decrypt(String encryptedText) {
-			return encryptedText != null ? textEncryptor.decrypt(encryptedText) : encryptedText;
+		private String[] decryptAll(String... encryptedTexts) {
+			if (textEncryptor instanceof AesTextEncryptor) {
+				return ((AesTextEncryptor) textEncryptor).decryptAll(encryptedTexts);
+			}
+			String[] texts = new String[encryptedTexts.length];
+			for (int i = 0; i < encryptedTexts.length; i++) {
+				texts[i] = encryptedTexts[i] != null ? textEncryptor.decrypt(encryptedTexts[i]) : null;
+			}
+			return texts;
 		}		
 	}
 	
-	private <A> String getProviderId(Class<A> apiType) {
+	<A> String getProviderId(Class<A> apiType) {
 		return connectionFactoryLocator.getConnectionFactory(apiType).getProviderId();
 	}
 	
@@ -437,18 +817,59 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 		return text != null ? textEncryptor.encrypt(text) : text;
 	}
 	
+	/** Derives the datastore key of the user's connection with the given key; no lookup is involved. */
+	Key createKey(ConnectionKey connectionKey) {
+		return new KeyFactory.Builder(userKey).addChild(getKind(), createConnectionKeyName(userId, connectionKey)).getKey();
+	}
+	
 	public static String createConnectionKeyName(String userId, ConnectionKey connectionKey) {
 		return userId + "-" + connectionKey.getProviderId() + "-" + connectionKey.getProviderUserId();
 	}
 	
+	/** Returns the provider user id of the connection with the given datastore key, named by {@link #createConnectionKeyName}. */
+	static String getProviderUserId(Key key, String providerId) {
+		String userId = key.getParent().getName();
+		return key.getName().substring(userId.length() + providerId.length() + 2);
+	}
+	
+	/**
+	 * Sets the cache that connections of the user are looked up in before querying the datastore.
+	 * Cached connections are keyed by the version of the user's entity group, which every write increments.
+	 * @param connectionCache the cache shared by all repositories, or null to always query the datastore
+	 */
+	public void setConnectionCache(ConnectionCache connectionCache) {
+		this.connectionCache = connectionCache;
+	}
+	
+	/**
+	 * Sets whether the user's connections are also stored, packed into a single property, on the parent {@code User}
+	 * entity, so that reading them all takes one get by key instead of an ancestor query.
+	 * Every write keeps that copy up to date within its transaction; when turned off, writes drop it.
+	 * @param denormalizeConnections true to maintain and read the denormalized connections
+	 */
+	public void setDenormalizeConnections(boolean denormalizeConnections) {
+		this.denormalizeConnections = denormalizeConnections;
+	}
+
+	/** Sets the reverse index maintained along with the connections of the user, or null to maintain none. */
+	void setConnectionIndex(ConnectionIndex connectionIndex) {
+		this.connectionIndex = connectionIndex;
+	}
+
+	boolean isDenormalizeConnections() {
+		return denormalizeConnections;
+	}
+
+	Key getUserKey() {
+		return userKey;
+	}
+	
 	/**
 	 * Configure the list of interceptors that should receive callbacks during the connection CRUD operations.
 	 * @param interceptors the connect interceptors to add
 	 */
 	public void setInterceptors(List<ConnectionInterceptor<?>> interceptors) {
-		for (ConnectionInterceptor<?> interceptor : interceptors) {
-			addInterceptor(interceptor);
-		}
+		this.interceptors = this.interceptors.with(interceptors);
 	}
 	
 	/**
@@ -456,17 +877,74 @@ class AppEngineConnectionRepository implements ConnectionRepository {
 	 * @param interceptor the connection interceptor to add
 	 */
 	public void addInterceptor(ConnectionInterceptor<?> interceptor) {
-		Class<?> serviceApiType = GenericTypeResolver.resolveTypeArgument(interceptor.getClass(), ConnectionInterceptor.class);
-		interceptors.add(serviceApiType, interceptor);
+		this.interceptors = this.interceptors.with(Collections.singletonList(interceptor));
 	}
 	
-	private List<ConnectionInterceptor<?>> interceptingConnectionsTo(Connection<?> connection) {
-		Class<?> serviceType = GenericTypeResolver.resolveTypeArgument(connection.getClass(), Connection.class);
-		List<ConnectionInterceptor<?>> typedInterceptors = interceptors.get(serviceType);
-		if (typedInterceptors == null) {
-			typedInterceptors = Collections.emptyList();
+	/** Sets interceptors already resolved into a table, e.g. one shared by all repositories. */
+	void setInterceptorTable(ConnectionInterceptorTable interceptors) {
+		this.interceptors = interceptors;
+	}
+	
+	/**
+	 * Sets the dispatcher "after" interceptor callbacks are handed to once a write has committed.
+	 * @param interceptorDispatcher the dispatcher, or null to run the callbacks right away in the writing thread
+	 */
+	public void setInterceptorDispatcher(InterceptorDispatcher interceptorDispatcher) {
+		this.interceptorDispatcher = interceptorDispatcher;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void afterCreate(final Connection<?> connection) {
+		final List<ConnectionInterceptor<?>> interceptors = interceptingConnectionsTo(connection);
+		if (interceptors.isEmpty()) return;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (ConnectionInterceptor interceptor : interceptors) {
+					interceptor.afterCreate(userId, connection);
+				}
+			}
+		});
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void afterUpdate(final Connection<?> connection) {
+		final List<ConnectionInterceptor<?>> interceptors = interceptingConnectionsTo(connection);
+		if (interceptors.isEmpty()) return;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (ConnectionInterceptor interceptor : interceptors) {
+					interceptor.afterUpdate(userId, connection);
+				}
+			}
+		});
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private void afterRemove(final Collection<Connection<?>> connections) {
+		final List<ConnectionInterceptor<?>> interceptors = interceptingConnectionsTo(connections.iterator().next());
+		if (interceptors.isEmpty()) return;
+		dispatch(new Runnable() {
+			@Override
+			public void run() {
+				for (ConnectionInterceptor interceptor : interceptors) {
+					interceptor.afterRemove(userId, (Collection) connections);
+				}
+			}
+		});
+	}
+	
+	private void dispatch(Runnable callbacks) {
+		if (interceptorDispatcher != null) {
+			interceptorDispatcher.dispatch(userId, callbacks);
+		} else {
+			callbacks.run();
 		}
-		return typedInterceptors;
+	}
+	
+	private List<ConnectionInterceptor<?>> interceptingConnectionsTo(Connection<?> connection) {
+		return interceptors.interceptorsFor(connectionFactoryLocator.getConnectionFactory(connection.getKey().getProviderId()));
 	}
 		
 }
@@ -15,8 +15,8 @@
  */
 package org.springframework.social.connect.appengine;
 
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -26,13 +26,17 @@ import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionKey;
-import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.ConnectionSignUp;
 import org.springframework.social.connect.UsersConnectionRepository;
 import org.springframework.social.connect.appengine.DatastoreUtils.EntityMapper;
 import org.springframework.social.connect.intercept.ConnectionInterceptor;
+import org.springframework.social.connect.intercept.InterceptorDispatcher;
+import org.springframework.util.MultiValueMap;
 
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Query.CompositeFilter;
@@ -45,19 +49,47 @@ import com.google.appengine.api.datastore.Query.FilterOperator;
  */
 public class AppEngineUsersConnectionRepository implements UsersConnectionRepository {
 
+	/** How often an index that is not known to be complete checks whether a backfill has completed it since. */
+	private static final long CONNECTION_INDEX_CHECK_INTERVAL = 60 * 1000L;
+
 	private transient final DatastoreService datastore;
+	private transient final AsyncDatastoreService asyncDatastore;
 	
 	private transient final ConnectionFactoryLocator connectionFactoryLocator;
 	private transient final TextEncryptor textEncryptor;
 	private transient ConnectionSignUp connectionSignUp;
-	private transient final List<ConnectionInterceptor<?>> interceptors = new ArrayList<ConnectionInterceptor<?>>();
+	private transient volatile ConnectionInterceptorTable interceptors = ConnectionInterceptorTable.EMPTY;
 
     private transient String kindPrefix = "";
 
+    private transient boolean cachingEnabled;
+
+    private transient ConnectionCache connectionCache;
+
+    private transient boolean denormalizeConnections;
+
+    private transient boolean connectionIndexEnabled;
+
+    private transient volatile boolean connectionIndexComplete;
+
+    private transient volatile long connectionIndexCheckedAt;
+
+    private transient ConnectionCache connectionIndexCache;
+
+    private transient int lookupParallelism = 10;
+
+    private transient InterceptorDispatcher interceptorDispatcher;
+
 	public AppEngineUsersConnectionRepository(ConnectionFactoryLocator connectionFactoryLocator, TextEncryptor textEncryptor, DatastoreService datastore) {
+		this(connectionFactoryLocator, textEncryptor, datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+	}
+
+	public AppEngineUsersConnectionRepository(ConnectionFactoryLocator connectionFactoryLocator, TextEncryptor textEncryptor, DatastoreService datastore,
+			AsyncDatastoreService asyncDatastore) {
 		this.connectionFactoryLocator = connectionFactoryLocator;
 		this.textEncryptor = textEncryptor;
 		this.datastore = datastore;
+		this.asyncDatastore = asyncDatastore;
 	}
 	
 	/**
@@ -79,6 +111,111 @@ public class AppEngineUsersConnectionRepository implements UsersConnectionReposi
 		this.kindPrefix = kindPrefix;
 	}
 	
+	/**
+	 * Sets whether repositories returned by {@link #createConnectionRepository(String)} should load the connections
+	 * of their user once and answer further reads from memory. Defaults to false.
+	 * Only enable this when the returned repositories are short lived, e.g. request scoped.
+	 * @param cachingEnabled true to cache connections in each created repository
+	 */
+	public void setCachingEnabled(boolean cachingEnabled) {
+		this.cachingEnabled = cachingEnabled;
+	}
+	
+	/**
+	 * Sets a cache shared by all repositories returned by {@link #createConnectionRepository(String)},
+	 * e.g. a {@link MemcacheConnectionCache}. Repositories look a user's connections up there before querying the datastore.
+	 * Setting a cache implies {@link #setCachingEnabled(boolean) caching} in each created repository.
+	 * @param connectionCache the shared cache, or null to disable it
+	 */
+	public void setConnectionCache(ConnectionCache connectionCache) {
+		this.connectionCache = connectionCache;
+	}
+	
+	/**
+	 * Sets whether each user's connections are also kept on their parent {@code User} entity,
+	 * so that loading them all takes a single get by key instead of an ancestor query. Defaults to false.
+	 * @param denormalizeConnections true to maintain and read the denormalized connections
+	 * @see AppEngineConnectionRepository#setDenormalizeConnections(boolean)
+	 */
+	public void setDenormalizeConnections(boolean denormalizeConnections) {
+		this.denormalizeConnections = denormalizeConnections;
+	}
+	
+	/**
+	 * Sets whether a reverse index from provider user to local user ids is maintained along with the connections,
+	 * in {@code UserConnectionIndex} entities. Defaults to false.
+	 * Once the index is complete, {@link #findUserIdsWithConnection(Connection)}, on the sign-in path, gets the index
+	 * entry by key instead of running a global, eventually consistent query. Until then lookups keep querying.
+	 * Writes to connections become cross-group transactions.
+	 * @param connectionIndexEnabled true to maintain and read the reverse index
+	 */
+	public void setConnectionIndexEnabled(boolean connectionIndexEnabled) {
+		this.connectionIndexEnabled = connectionIndexEnabled;
+	}
+	
+	/**
+	 * Sets whether every connection is known to be in the reverse index, e.g. because the index was enabled before
+	 * any connection was made, so that lookups read it right away. Defaults to false, in which case the index is read
+	 * only once {@link #backfillConnectionIndex(Cursor, int)} has indexed the existing connections.
+	 * @param connectionIndexComplete true if the reverse index is authoritative
+	 */
+	public void setConnectionIndexComplete(boolean connectionIndexComplete) {
+		this.connectionIndexComplete = connectionIndexComplete;
+	}
+	
+	/**
+	 * Sets a cache for reverse index lookups, e.g. a {@link LocalConnectionCache} with a short time to live.
+	 * Entries are evicted when a connection is added or removed through this instance; an in-process cache on
+	 * other instances may serve them until they expire.
+	 * @param connectionIndexCache the cache, or null to always get index entries from the datastore
+	 */
+	public void setConnectionIndexCache(ConnectionCache connectionIndexCache) {
+		this.connectionIndexCache = connectionIndexCache;
+	}
+	
+	/**
+	 * Sets how many chunks of provider user ids {@link #findUserIdsConnectedTo(String, Set)} looks up at once. Defaults to 10.
+	 * @param lookupParallelism the maximum number of datastore calls in flight per lookup
+	 */
+	public void setLookupParallelism(int lookupParallelism) {
+		this.lookupParallelism = lookupParallelism;
+	}
+	
+	/**
+	 * Adds one page of the existing connections to the reverse index, e.g. from a chain of tasks once the index
+	 * has been enabled. Run pages one after another from the returned cursor, until it is null: the last page marks
+	 * the index complete, for every instance, and lookups start reading it. Pages may safely be run again.
+	 * @param cursor where the previous page ended, or null to start
+	 * @param pageSize the maximum number of connections to index
+	 * @return the cursor to run the next page from, or null once the index is complete
+	 * @throws IllegalStateException if the reverse index is not {@link #setConnectionIndexEnabled(boolean) enabled}
+	 */
+	public Cursor backfillConnectionIndex(Cursor cursor, int pageSize) {
+		if (!connectionIndexEnabled) {
+			throw new IllegalStateException("The connection index is not enabled");
+		}
+		Cursor next = new ConnectionIndex(datastore, kindPrefix, false, connectionIndexCache).backfill(getKind(), cursor, pageSize);
+		if (next == null) {
+			connectionIndexComplete = true;
+		}
+		return next;
+	}
+	
+	private ConnectionIndex createConnectionIndex() {
+		return connectionIndexEnabled ? new ConnectionIndex(datastore, kindPrefix, isConnectionIndexComplete(), connectionIndexCache) : null;
+	}
+	
+	private boolean isConnectionIndexComplete() {
+		if (!connectionIndexComplete) {
+			long now = System.currentTimeMillis();
+			if (now - connectionIndexCheckedAt >= CONNECTION_INDEX_CHECK_INTERVAL) {
+				connectionIndexCheckedAt = now;
+				connectionIndexComplete = new ConnectionIndex(datastore, kindPrefix, false, null).isMarkedComplete();
+			}
+		}
+		return connectionIndexComplete;
+	}
+	
 	/** Returns kind of the entity */
 	private String getKind() {
 		return (kindPrefix != null ? kindPrefix : "") + "UserConnection";
@@ -88,13 +225,17 @@ public class AppEngineUsersConnectionRepository implements UsersConnectionReposi
 	@Override
 	public List<String> findUserIdsWithConnection(Connection<?> connection) {
 		ConnectionKey key = connection.getKey();
-		final CompositeFilter filter = CompositeFilterOperator.and(
-			FilterOperator.EQUAL.of("providerId", key.getProviderId()),
-			FilterOperator.EQUAL.of("providerUserId", key.getProviderUserId())
-		);
-        // fetch and return only keys, not full entities.
-		Query query = new Query(getKind()).setFilter(filter).setKeysOnly();
-		List<String> localUserIds = DatastoreUtils.queryForList(datastore.prepare(query), userIdMapper);
+		ConnectionIndex connectionIndex = createConnectionIndex();
+		List<String> localUserIds = connectionIndex != null ? connectionIndex.findUserIds(key) : null;
+		if (localUserIds == null) {
+			final CompositeFilter filter = CompositeFilterOperator.and(
+				FilterOperator.EQUAL.of("providerId", key.getProviderId()),
+				FilterOperator.EQUAL.of("providerUserId", key.getProviderUserId())
+			);
+	        // fetch and return only keys, not full entities.
+			Query query = new Query(getKind()).setFilter(filter).setKeysOnly();
+			localUserIds = DatastoreUtils.queryForList(datastore.prepare(query), userIdMapper);
+		}
 		if (localUserIds.size() == 0 && connectionSignUp != null) {			
 				String newUserId = connectionSignUp.execute(connection);
 				if (newUserId != null) {
@@ -105,23 +246,60 @@ public class AppEngineUsersConnectionRepository implements UsersConnectionReposi
 		return localUserIds;
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Any number of provider user ids may be given; they are looked up in parallel chunks.
+	 * @see #findUserIdsByProviderUserId(String, Set)
+	 */
 	@Override
 	public Set<String> findUserIdsConnectedTo(String providerId, Set<String> providerUserIds) {
-		final CompositeFilter filter = CompositeFilterOperator.and(
-			FilterOperator.EQUAL.of("providerId", providerId),
-			FilterOperator.IN.of("providerUserId", providerUserIds)
-		);
-        // fetch and return only keys, not full entities.
-		Query query = new Query(getKind()).setFilter(filter).setKeysOnly();
-		List<String> resultList = DatastoreUtils.queryForList(datastore.prepare(query), userIdMapper);
-		return new HashSet<String>(resultList);
+		Set<String> userIds = new HashSet<String>();
+		for (List<String> connectedUserIds : findUserIdsByProviderUserId(providerId, providerUserIds).values()) {
+			userIds.addAll(connectedUserIds);
+		}
+		return userIds;
+	}
+
+	/**
+	 * Find the ids of the local users connected to each of the given provider users, e.g. to tell which friends
+	 * of a user also use the application. Provider user ids are looked up in chunks the datastore accepts, with up to
+	 * the {@link #setLookupParallelism(int) lookup parallelism} of them in flight at once, using the reverse index when enabled.
+	 * @param providerId the provider id, e.g. "facebook"
+	 * @param providerUserIds the provider user ids
+	 * @return the local user ids by provider user id, for the provider users connected to any local user
+	 */
+	public MultiValueMap<String, String> findUserIdsByProviderUserId(String providerId, Set<String> providerUserIds) {
+		return new ConnectedUserIdsLookup(asyncDatastore, getKind(), createConnectionIndex(), lookupParallelism)
+				.findUserIds(providerId, providerUserIds);
 	}
 	
 	@Override
-	public ConnectionRepository createConnectionRepository(String userId) {
+	public DatastoreConnectionRepository createConnectionRepository(String userId) {
 		if (userId == null) throw new IllegalArgumentException("userId cannot be null");
+		AppEngineConnectionRepository repo = newConnectionRepository(userId);
+		return (cachingEnabled || connectionCache != null) ? new CachingConnectionRepository(repo) : repo;
+	}
+
+	/**
+	 * Creates a non-blocking repository for reading the connections of the given user.
+	 * Reads go straight to the datastore, bypassing the {@link #setConnectionCache(ConnectionCache) connection cache},
+	 * whose lookups would block; with {@link #setDenormalizeConnections(boolean) denormalized connections} they take a single get.
+	 * @param userId the local user id
+	 * @see AsyncConnectionRepository
+	 */
+	public AsyncConnectionRepository createAsyncConnectionRepository(String userId) {
+		if (userId == null) throw new IllegalArgumentException("userId cannot be null");
+		return new AppEngineAsyncConnectionRepository(newConnectionRepository(userId), asyncDatastore);
+	}
+
+	private AppEngineConnectionRepository newConnectionRepository(String userId) {
 		AppEngineConnectionRepository repo = new AppEngineConnectionRepository(userId, connectionFactoryLocator, textEncryptor, datastore, kindPrefix);
-		repo.setInterceptors(interceptors);
+		repo.setInterceptorTable(interceptors);
+		repo.setInterceptorDispatcher(interceptorDispatcher);
+		repo.setConnectionCache(connectionCache);
+		repo.setDenormalizeConnections(denormalizeConnections);
+		repo.setConnectionIndex(createConnectionIndex());
 		return repo;
 	}
 
@@ -137,7 +315,7 @@ public class AppEngineUsersConnectionRepository implements UsersConnectionReposi
 	 * @param interceptors the connect interceptors to add
 	 */
 	public void setInterceptors(List<ConnectionInterceptor<?>> interceptors) {
-		this.interceptors.addAll(interceptors);
+		this.interceptors = this.interceptors.with(interceptors);
 	}
 	
 	/**
@@ -145,6 +323,17 @@ public class AppEngineUsersConnectionRepository implements UsersConnectionReposi
 	 * @param interceptor the connection interceptor to add
 	 */
 	public void addInterceptor(ConnectionInterceptor<?> interceptor) {
-		interceptors.add(interceptor);
-	}	
+		this.interceptors = this.interceptors.with(Collections.singletonList(interceptor));
+	}
+
+	/**
+	 * Sets the dispatcher the "after" callbacks of interceptors are handed to once a write has committed,
+	 * e.g. an {@link org.springframework.social.connect.intercept.ExecutorInterceptorDispatcher} to run them off the request thread.
+	 * "Before" callbacks always run in the writing thread, so that they can veto the write. Defaults to none,
+	 * running every callback in the writing thread.
+	 * @param interceptorDispatcher the dispatcher, or null
+	 */
+	public void setInterceptorDispatcher(InterceptorDispatcher interceptorDispatcher) {
+		this.interceptorDispatcher = interceptorDispatcher;
+	}
 }
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Non-blocking counterpart of the read operations of {@link ConnectionRepository}.
+ * Each method starts its datastore calls and returns immediately, so that callers can overlap several lookups
+ * and wait once. Failures, e.g. a {@link org.springframework.social.connect.NoSuchConnectionException},
+ * are reported as the cause of the {@link java.util.concurrent.ExecutionException} thrown by {@link Future#get()}.
+ * @see AppEngineUsersConnectionRepository#createAsyncConnectionRepository(String)
+ */
+public interface AsyncConnectionRepository {
+
+	/**
+	 * @see ConnectionRepository#findAllConnections()
+	 */
+	Future<MultiValueMap<String, Connection<?>>> findAllConnections();
+
+	/**
+	 * @see DatastoreConnectionRepository#findConnectionSummaries()
+	 */
+	Future<MultiValueMap<String, ConnectionSummary>> findConnectionSummaries();
+
+	/**
+	 * @see ConnectionRepository#findConnections(String)
+	 */
+	Future<List<Connection<?>>> findConnections(String providerId);
+
+	/**
+	 * @see ConnectionRepository#findPrimaryConnection(Class)
+	 */
+	<A> Future<Connection<A>> findPrimaryConnection(Class<A> apiType);
+
+	/**
+	 * @see ConnectionRepository#getConnection(ConnectionKey)
+	 */
+	Future<Connection<?>> getConnection(ConnectionKey connectionKey);
+
+	/**
+	 * @see DatastoreConnectionRepository#getConnections(Collection)
+	 */
+	Future<Map<ConnectionKey, Connection<?>>> getConnections(Collection<ConnectionKey> connectionKeys);
+
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.NoSuchConnectionException;
+import org.springframework.social.connect.NotConnectedException;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@link ConnectionRepository} decorator that loads the whole {@code UserConnection} entity group of the user
+ * once, with a single ancestor query, and answers subsequent reads from memory.
+ * Any write through this repository invalidates the loaded state.
+ * <p>
+ * Meant to live no longer than a request: connections added or removed through another repository instance
+ * are not seen until this one is invalidated. Not thread-safe.
+ */
+class CachingConnectionRepository implements DatastoreConnectionRepository {
+
+	private final AppEngineConnectionRepository delegate;
+
+	private List<ConnectionRecord> records;
+
+	private List<Connection<?>> connections;
+
+	CachingConnectionRepository(AppEngineConnectionRepository delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findAllConnections() {
+		return delegate.groupByProvider(getConnections());
+	}
+
+	@Override
+	public MultiValueMap<String, ConnectionSummary> findConnectionSummaries() {
+		return delegate.summarize(getRecords());
+	}
+
+	@Override
+	public List<Connection<?>> findConnections(String providerId) {
+		List<ConnectionRecord> records = getRecords();
+		List<Connection<?>> connections = getConnections();
+		List<Connection<?>> resultList = new ArrayList<Connection<?>>();
+		for (int i = 0; i < records.size(); i++) {
+			if (records.get(i).getProviderId().equals(providerId)) {
+				resultList.add(connections.get(i));
+			}
+		}
+		return resultList;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A> List<Connection<A>> findConnections(Class<A> apiType) {
+		List<?> connections = findConnections(delegate.getProviderId(apiType));
+		return (List<Connection<A>>) connections;
+	}
+
+	@Override
+	public MultiValueMap<String, Connection<?>> findConnectionsToUsers(MultiValueMap<String, String> providerUserIds) {
+		return delegate.findConnectionsToUsers(providerUserIds);
+	}
+
+	@Override
+	public Connection<?> getConnection(ConnectionKey connectionKey) {
+		int index = indexOf(connectionKey);
+		if (index < 0) {
+			throw new NoSuchConnectionException(connectionKey);
+		}
+		return getConnections().get(index);
+	}
+
+	@Override
+	public Map<ConnectionKey, Connection<?>> getConnections(Collection<ConnectionKey> connectionKeys) {
+		Map<ConnectionKey, Connection<?>> connections = new LinkedHashMap<ConnectionKey, Connection<?>>();
+		for (ConnectionKey connectionKey : connectionKeys) {
+			int index = indexOf(connectionKey);
+			if (index >= 0) {
+				connections.put(connectionKey, getConnections().get(index));
+			}
+		}
+		return connections;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A> Connection<A> getConnection(Class<A> apiType, String providerUserId) {
+		String providerId = delegate.getProviderId(apiType);
+		return (Connection<A>) getConnection(new ConnectionKey(providerId, providerUserId));
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A> Connection<A> getPrimaryConnection(Class<A> apiType) {
+		String providerId = delegate.getProviderId(apiType);
+		Connection<A> connection = (Connection<A>) findPrimaryConnection(providerId);
+		if (connection == null) {
+			throw new NotConnectedException(providerId);
+		}
+		return connection;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <A> Connection<A> findPrimaryConnection(Class<A> apiType) {
+		String providerId = delegate.getProviderId(apiType);
+		return (Connection<A>) findPrimaryConnection(providerId);
+	}
+
+	private Connection<?> findPrimaryConnection(String providerId) {
+		List<ConnectionRecord> records = getRecords();
+		for (int i = 0; i < records.size(); i++) {
+			ConnectionRecord record = records.get(i);
+			if (record.getProviderId().equals(providerId) && record.isPrimary()) {
+				return getConnections().get(i);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void addConnection(Connection<?> connection) {
+		try {
+			delegate.addConnection(connection);
+		} finally {
+			invalidate();
+		}
+	}
+
+	@Override
+	public void updateConnection(Connection<?> connection) {
+		try {
+			delegate.updateConnection(connection);
+		} finally {
+			invalidate();
+		}
+	}
+
+	@Override
+	public void removeConnections(String providerId) {
+		try {
+			delegate.removeConnections(providerId);
+		} finally {
+			invalidate();
+		}
+	}
+
+	@Override
+	public void removeConnection(ConnectionKey connectionKey) {
+		try {
+			delegate.removeConnection(connectionKey);
+		} finally {
+			invalidate();
+		}
+	}
+
+	/** Drops the loaded connections so that the next read goes back to the datastore. */
+	public void invalidate() {
+		records = null;
+		connections = null;
+	}
+
+	private int indexOf(ConnectionKey connectionKey) {
+		List<ConnectionRecord> records = getRecords();
+		for (int i = 0; i < records.size(); i++) {
+			ConnectionRecord record = records.get(i);
+			if (record.getProviderId().equals(connectionKey.getProviderId())
+					&& record.getProviderUserId().equals(connectionKey.getProviderUserId())) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private List<ConnectionRecord> getRecords() {
+		if (records == null) {
+			records = delegate.findConnectionRecords();
+		}
+		return records;
+	}
+
+	/** Connections mapped from {@link #getRecords()}, index for index. */
+	private List<Connection<?>> getConnections() {
+		if (connections == null) {
+			List<ConnectionRecord> records = getRecords();
+			List<Connection<?>> mapped = new ArrayList<Connection<?>>(records.size());
+			for (ConnectionRecord record : records) {
+				mapped.add(delegate.mapConnection(record));
+			}
+			connections = mapped;
+		}
+		return connections;
+	}
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+
+/**
+ * Finds the local users connected to any number of users of a provider.
+ * Provider user ids are split into chunks the datastore accepts, at most 30 values per {@code IN} filter
+ * and 1000 keys per batch get, and up to a given number of chunks are in flight at once on the
+ * {@link AsyncDatastoreService}. Results are merged as each chunk completes, in the order the chunks were started.
+ * <p>
+ * With a complete {@link ConnectionIndex}, chunks are batch gets of index entries instead; an index that is not
+ * complete yet is not read.
+ */
+class ConnectedUserIdsLookup {
+
+	private static final int MAX_IN_VALUES = 30;
+
+	private static final int MAX_BATCH_GET_KEYS = 1000;
+
+	private final AsyncDatastoreService asyncDatastore;
+
+	private final String kind;
+
+	private final ConnectionIndex connectionIndex;
+
+	private final int parallelism;
+
+	/**
+	 * @param kind the kind of the connection entities
+	 * @param connectionIndex the reverse index to read, or null
+	 * @param parallelism the maximum number of chunks in flight at once
+	 */
+	ConnectedUserIdsLookup(AsyncDatastoreService asyncDatastore, String kind, ConnectionIndex connectionIndex, int parallelism) {
+		this.asyncDatastore = asyncDatastore;
+		this.kind = kind;
+		this.connectionIndex = connectionIndex;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/** Returns the ids of the local users connected to each of the given provider users that has any. */
+	MultiValueMap<String, String> findUserIds(String providerId, Collection<String> providerUserIds) {
+		MultiValueMap<String, String> userIds = new LinkedMultiValueMap<String, String>();
+		if (providerUserIds.isEmpty()) {
+			return userIds;
+		}
+		if (connectionIndex != null && connectionIndex.isComplete()) {
+			getIndexEntries(providerId, providerUserIds, userIds);
+		} else {
+			queryConnections(providerId, providerUserIds, userIds);
+		}
+		return userIds;
+	}
+
+	/** Reads index entries into the given map; provider users without an entry have no local user. */
+	private void getIndexEntries(String providerId, Collection<String> providerUserIds, MultiValueMap<String, String> userIds) {
+		LinkedList<Chunk<Map<Key, Entity>>> inFlight = new LinkedList<Chunk<Map<Key, Entity>>>();
+		for (List<String> ids : split(providerUserIds, MAX_BATCH_GET_KEYS)) {
+			List<Key> keys = new ArrayList<Key>(ids.size());
+			for (String id : ids) {
+				keys.add(connectionIndex.createKey(new ConnectionKey(providerId, id)));
+			}
+			inFlight.add(new Chunk<Map<Key, Entity>>(ids, asyncDatastore.get(keys)));
+			if (inFlight.size() >= parallelism) {
+				mergeIndexEntries(providerId, inFlight.removeFirst(), userIds);
+			}
+		}
+		while (!inFlight.isEmpty()) {
+			mergeIndexEntries(providerId, inFlight.removeFirst(), userIds);
+		}
+	}
+
+	private void mergeIndexEntries(String providerId, Chunk<Map<Key, Entity>> chunk, MultiValueMap<String, String> userIds) {
+		Map<Key, Entity> entries = getResult(chunk.result);
+		for (String id : chunk.providerUserIds) {
+			Entity entry = entries.get(connectionIndex.createKey(new ConnectionKey(providerId, id)));
+			if (entry != null) {
+				for (String userId : ConnectionIndex.getUserIds(entry)) {
+					userIds.add(id, userId);
+				}
+			}
+		}
+	}
+
+	/** Runs keys-only queries into the given map; the provider user id is part of each connection's key name. */
+	private void queryConnections(String providerId, Collection<String> providerUserIds, MultiValueMap<String, String> userIds) {
+		LinkedList<List<Entity>> inFlight = new LinkedList<List<Entity>>();
+		for (List<String> ids : split(providerUserIds, MAX_IN_VALUES)) {
+			Query query = new Query(kind)
+				.setFilter(CompositeFilterOperator.and(
+					FilterOperator.EQUAL.of("providerId", providerId),
+					FilterOperator.IN.of("providerUserId", ids)))
+				.setKeysOnly();
+			// an async query starts fetching right away, its results block only once read
+			inFlight.add(asyncDatastore.prepare(query).asList(FetchOptions.Builder.withDefaults()));
+			if (inFlight.size() >= parallelism) {
+				mergeConnections(providerId, inFlight.removeFirst(), userIds);
+			}
+		}
+		while (!inFlight.isEmpty()) {
+			mergeConnections(providerId, inFlight.removeFirst(), userIds);
+		}
+	}
+
+	private void mergeConnections(String providerId, List<Entity> entities, MultiValueMap<String, String> userIds) {
+		for (Entity entity : entities) {
+			Key key = entity.getKey();
+			userIds.add(AppEngineConnectionRepository.getProviderUserId(key, providerId), key.getParent().getName());
+		}
+	}
+
+	private static List<List<String>> split(Collection<String> values, int chunkSize) {
+		List<List<String>> chunks = new ArrayList<List<String>>((values.size() + chunkSize - 1) / chunkSize);
+		List<String> chunk = null;
+		for (String value : values) {
+			if (chunk == null || chunk.size() == chunkSize) {
+				chunk = new ArrayList<String>(chunkSize);
+				chunks.add(chunk);
+			}
+			chunk.add(value);
+		}
+		return chunks;
+	}
+
+	private static <T> T getResult(Future<T> future) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new DatastoreFailureException("Lookup of connected users failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new DatastoreFailureException("Interrupted while looking up connected users", e);
+		}
+	}
+
+	private static final class Chunk<T> {
+
+		private final List<String> providerUserIds;
+
+		private final Future<T> result;
+
+		private Chunk(List<String> providerUserIds, Future<T> result) {
+			this.providerUserIds = providerUserIds;
+			this.result = result;
+		}
+	}
+
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import org.springframework.social.cache.ValueCache;
+
+/**
+ * Cache shared by the connection repositories of all users, e.g. an in-process LRU or memcache.
+ * Repositories cache the connections of each user under the version of their entity group, which is cached
+ * too and published with {@link #putIfGreater(String, long)} after every write.
+ * @see LocalConnectionCache
+ * @see MemcacheConnectionCache
+ */
+public interface ConnectionCache extends ValueCache {
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.springframework.social.connect.appengine.DatastoreUtils.EntityMapper;
+import org.springframework.social.connect.appengine.DatastoreUtils.Page;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+
+/**
+ * Streams every {@code UserConnection} entity, of all users, to an output stream, a page at a time.
+ * Memory use is bounded by the page size, whatever the number of users.
+ * <p>
+ * Each connection is written as one entry: a tag byte, the local user id and the connection record in the
+ * form of {@link ConnectionRecordCodec#writeRecord}. Tokens are written as stored, that is still encrypted,
+ * so the importing application must use the same {@code TextEncryptor}.
+ * An interrupted export is resumed by exporting from the last cursor passed to the {@link ExportListener}
+ * and appending to the same stream.
+ * @see ConnectionImporter
+ */
+public class ConnectionExporter {
+
+	/** Tag byte preceding every entry of the export format. */
+	static final int ENTRY_TAG = 1;
+
+	private final DatastoreService datastore;
+
+	private String kindPrefix = "";
+
+	private int pageSize = 500;
+
+	public ConnectionExporter(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Sets the datastore entity kind prefix the connections were stored with. Defaults to "".
+	 * @see AppEngineUsersConnectionRepository#setKindPrefix(String)
+	 */
+	public void setKindPrefix(String kindPrefix) {
+		this.kindPrefix = kindPrefix;
+	}
+
+	/**
+	 * Sets the number of entities read from the datastore at a time. Defaults to 500.
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Writes every connection to the given stream.
+	 * @param out the stream to write to; it is flushed after each page but not closed
+	 * @param startCursor the web-safe cursor to resume from, or null to export from the start
+	 * @param listener notified after each page, may be null
+	 * @return the number of connections written
+	 */
+	public long exportConnections(OutputStream out, String startCursor, ExportListener listener) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		Query query = new Query((kindPrefix != null ? kindPrefix : "") + "UserConnection");
+		Cursor cursor = startCursor != null ? Cursor.fromWebSafeString(startCursor) : null;
+		long exported = 0;
+		while (true) {
+			Page<Entry> page = DatastoreUtils.queryForPage(datastore.prepare(query), cursor, pageSize, entryMapper);
+			for (Entry entry : page.getResults()) {
+				data.writeByte(ENTRY_TAG);
+				data.writeUTF(entry.userId);
+				ConnectionRecordCodec.writeRecord(data, entry.record);
+			}
+			data.flush();
+			exported += page.getResults().size();
+			if (listener != null) {
+				listener.pageExported(page.getEndCursor().toWebSafeString(), exported);
+			}
+			if (!page.hasNext()) {
+				return exported;
+			}
+			cursor = page.getNextCursor();
+		}
+	}
+
+	private final EntityMapper<Entry> entryMapper = new EntityMapper<Entry>() {
+		@Override
+		public Entry mapEntity(Entity entity) {
+			return new Entry(entity.getKey().getParent().getName(), ConnectionRecord.fromEntity(entity));
+		}
+	};
+
+	private static final class Entry {
+
+		private final String userId;
+
+		private final ConnectionRecord record;
+
+		private Entry(String userId, ConnectionRecord record) {
+			this.userId = userId;
+			this.record = record;
+		}
+	}
+
+	/**
+	 * Callback for tracking the progress of an export.
+	 */
+	public static interface ExportListener {
+
+		/**
+		 * Called once a page has been written and flushed.
+		 * @param cursor the web-safe cursor to resume the export from
+		 * @param exportedCount the number of connections written so far by this run
+		 */
+		void pageExported(String cursor, long exportedCount);
+
+	}
+
+}
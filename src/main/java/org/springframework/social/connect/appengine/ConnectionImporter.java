@@ -0,0 +1,297 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.appengine.DatastoreUtils.EntityMapper;
+import org.springframework.social.connect.appengine.DatastoreUtils.Page;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+
+import static com.google.appengine.api.datastore.TransactionOptions.Builder.withXG;
+
+/**
+ * Writes {@code UserConnection} entities read from a stream produced by {@link ConnectionExporter},
+ * a batch at a time. Memory use is bounded by the batch size, whatever the length of the stream.
+ * Existing connections with the same key are overwritten.
+ * <p>
+ * The connections of a batch are written user by user, each user's in a transaction that also gives the parent
+ * {@code User} entity a new version and drops its denormalized connections, so that repositories and caches read
+ * the imported connections, and concurrent writes through a repository either see them or fail to commit.
+ * When the reverse index is {@link #setConnectionIndexEnabled(boolean) enabled}, its entries are updated in the
+ * same transactions, which are then cross-group and write at most four connections each.
+ * An interrupted import is resumed by importing the same stream again, skipping the number of entries
+ * last passed to the {@link ImportListener}.
+ */
+public class ConnectionImporter {
+
+	/** Connections written per transaction along with their index entries, each in its own entity group. */
+	private static final int INDEXED_BATCH_SIZE = ConnectionIndex.MAX_TRANSACTION_ENTITY_GROUPS - 1;
+
+	private final DatastoreService datastore;
+
+	private String kindPrefix = "";
+
+	private int batchSize = 500;
+
+	private ConnectionCache connectionCache;
+
+	private boolean connectionIndexEnabled;
+
+	private ConnectionCache connectionIndexCache;
+
+	public ConnectionImporter(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Sets the datastore entity kind prefix connections are stored with. Defaults to "".
+	 * @see AppEngineUsersConnectionRepository#setKindPrefix(String)
+	 */
+	public void setKindPrefix(String kindPrefix) {
+		this.kindPrefix = kindPrefix;
+	}
+
+	/**
+	 * Sets the number of entities written to the datastore at a time. Defaults to 500, the most a single call allows.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the connection cache used by the repositories, where the new versions of the affected users are published.
+	 * @see AppEngineUsersConnectionRepository#setConnectionCache(ConnectionCache)
+	 */
+	public void setConnectionCache(ConnectionCache connectionCache) {
+		this.connectionCache = connectionCache;
+	}
+
+	/**
+	 * Sets whether the reverse index from provider user to local user ids is updated along with the connections
+	 * written and deleted. Defaults to false. Enable it whenever the repositories maintain the index.
+	 * @see AppEngineUsersConnectionRepository#setConnectionIndexEnabled(boolean)
+	 */
+	public void setConnectionIndexEnabled(boolean connectionIndexEnabled) {
+		this.connectionIndexEnabled = connectionIndexEnabled;
+	}
+
+	/**
+	 * Sets the cache of reverse index lookups, whose entries for the affected provider users are evicted.
+	 * @see AppEngineUsersConnectionRepository#setConnectionIndexCache(ConnectionCache)
+	 */
+	public void setConnectionIndexCache(ConnectionCache connectionIndexCache) {
+		this.connectionIndexCache = connectionIndexCache;
+	}
+
+	/**
+	 * Reads connections from the given stream until its end and writes them to the datastore.
+	 * @param in the stream to read, which is not closed
+	 * @param skipCount the number of leading entries to skip, e.g. those written by an interrupted import
+	 * @param listener notified after each batch, may be null
+	 * @return the number of connections written
+	 */
+	public long importConnections(InputStream in, long skipCount, ImportListener listener) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		List<Entity> batch = new ArrayList<Entity>(batchSize);
+		long position = 0;
+		long imported = 0;
+		while (true) {
+			int tag = data.read();
+			if (tag == -1) {
+				break;
+			}
+			if (tag != ConnectionExporter.ENTRY_TAG) {
+				throw new IOException("Unexpected tag " + tag + " at entry " + position);
+			}
+			String userId = data.readUTF();
+			ConnectionRecord record = ConnectionRecordCodec.readRecord(data);
+			if (position++ < skipCount) {
+				continue;
+			}
+			Entity entity = new Entity(getKind(), AppEngineConnectionRepository.createConnectionKeyName(userId, record.getKey()),
+					KeyFactory.createKey(getParentKind(), userId));
+			record.copyTo(entity);
+			batch.add(entity);
+			if (batch.size() >= batchSize) {
+				imported += writeBatch(batch, listener, position, imported);
+			}
+		}
+		if (!batch.isEmpty()) {
+			imported += writeBatch(batch, listener, position, imported);
+		}
+		return imported;
+	}
+
+	/**
+	 * Deletes the connections of every user, a batch at a time, e.g. before restoring a full export.
+	 * @return the number of connections deleted
+	 */
+	public long deleteAllConnections() {
+		Query query = new Query(getKind());
+		Cursor cursor = null;
+		long deleted = 0;
+		while (true) {
+			Page<Entity> page = DatastoreUtils.queryForPage(datastore.prepare(query), cursor, batchSize, entityMapper);
+			writeUsers(Collections.<Entity>emptyList(), page.getResults());
+			deleted += page.getResults().size();
+			if (!page.hasNext()) {
+				return deleted;
+			}
+			cursor = page.getNextCursor();
+		}
+	}
+
+	private static final EntityMapper<Entity> entityMapper = new EntityMapper<Entity>() {
+		@Override
+		public Entity mapEntity(Entity entity) {
+			return entity;
+		}
+	};
+
+	private int writeBatch(List<Entity> batch, ImportListener listener, long position, long imported) {
+		writeUsers(batch, Collections.<Entity>emptyList());
+		int size = batch.size();
+		batch.clear();
+		if (listener != null) {
+			listener.batchImported(position, imported + size);
+		}
+		return size;
+	}
+
+	/** Puts and deletes the given connections, user by user, in transactions that also bump the users' versions. */
+	private void writeUsers(List<Entity> puts, List<Entity> deletes) {
+		Map<Key, List<Entity>> putsByUser = groupByUser(puts);
+		Map<Key, List<Entity>> deletesByUser = groupByUser(deletes);
+		int transactionSize = connectionIndexEnabled ? INDEXED_BATCH_SIZE : batchSize;
+		for (Map.Entry<Key, List<Entity>> entry : putsByUser.entrySet()) {
+			List<Entity> connections = entry.getValue();
+			for (int i = 0; i < connections.size(); i += transactionSize) {
+				writeUser(entry.getKey(), connections.subList(i, Math.min(i + transactionSize, connections.size())), true);
+			}
+		}
+		for (Map.Entry<Key, List<Entity>> entry : deletesByUser.entrySet()) {
+			List<Entity> connections = entry.getValue();
+			for (int i = 0; i < connections.size(); i += transactionSize) {
+				writeUser(entry.getKey(), connections.subList(i, Math.min(i + transactionSize, connections.size())), false);
+			}
+		}
+	}
+
+	private static Map<Key, List<Entity>> groupByUser(List<Entity> connections) {
+		Map<Key, List<Entity>> byUser = new LinkedHashMap<Key, List<Entity>>();
+		for (Entity connection : connections) {
+			List<Entity> userConnections = byUser.get(connection.getParent());
+			if (userConnections == null) {
+				userConnections = new ArrayList<Entity>();
+				byUser.put(connection.getParent(), userConnections);
+			}
+			userConnections.add(connection);
+		}
+		return byUser;
+	}
+
+	/**
+	 * Puts or deletes connections of one user, updating their index entries, and bumps the version of the user's
+	 * entity group and drops its denormalized connections, all in one transaction; then publishes the new version.
+	 */
+	private void writeUser(Key userKey, List<Entity> connections, boolean put) {
+		ConnectionIndex connectionIndex = connectionIndexEnabled ? new ConnectionIndex(datastore, kindPrefix, false, connectionIndexCache) : null;
+		String userId = userKey.getName();
+		List<ConnectionKey> connectionKeys = new ArrayList<ConnectionKey>(connections.size());
+		for (Entity connection : connections) {
+			connectionKeys.add(new ConnectionKey((String) connection.getProperty("providerId"), (String) connection.getProperty("providerUserId")));
+		}
+		long version;
+		Transaction txn = connectionIndex != null ? datastore.beginTransaction(withXG(true)) : datastore.beginTransaction();
+		try {
+			Entity user;
+			try {
+				user = datastore.get(txn, userKey);
+			} catch (EntityNotFoundException e) {
+				user = new Entity(userKey);
+			}
+			version = AppEngineConnectionRepository.incrementVersion(user);
+			user.removeProperty("connections");
+			if (put) {
+				datastore.put(txn, connections);
+				if (connectionIndex != null) {
+					for (ConnectionKey connectionKey : connectionKeys) {
+						connectionIndex.addUserId(txn, connectionKey, userId);
+					}
+				}
+			} else {
+				List<Key> keys = new ArrayList<Key>(connections.size());
+				for (Entity connection : connections) {
+					keys.add(connection.getKey());
+				}
+				datastore.delete(txn, keys);
+				if (connectionIndex != null) {
+					connectionIndex.removeUserId(txn, connectionKeys, userId);
+				}
+			}
+			datastore.put(txn, user);
+			txn.commit();
+		} finally {
+			if (txn.isActive()) txn.rollback();
+		}
+		if (connectionCache != null) {
+			connectionCache.putIfGreater(AppEngineConnectionRepository.getVersionCacheKey(userKey), version);
+		}
+		if (connectionIndex != null) {
+			connectionIndex.evict(connectionKeys);
+		}
+	}
+
+	private String getParentKind() {
+		return (kindPrefix != null ? kindPrefix : "") + "User";
+	}
+
+	private String getKind() {
+		return (kindPrefix != null ? kindPrefix : "") + "UserConnection";
+	}
+
+	/**
+	 * Callback for tracking the progress of an import.
+	 */
+	public static interface ImportListener {
+
+		/**
+		 * Called once a batch has been written.
+		 * @param position the number of entries read from the stream so far, to skip when resuming the import
+		 * @param importedCount the number of connections written so far by this run
+		 */
+		void batchImported(long position, long importedCount);
+
+	}
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.appengine.DatastoreUtils.EntityMapper;
+import org.springframework.social.connect.appengine.DatastoreUtils.Page;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+
+import static com.google.appengine.api.datastore.TransactionOptions.Builder.withXG;
+
+/**
+ * Reverse index from provider user to the local users connected to them, stored as one
+ * {@code UserConnectionIndex} entity per provider user, keyed by {@code providerId:providerUserId}.
+ * Lookups are strongly consistent gets by key instead of global queries.
+ * <p>
+ * Entries are written within the transactions that add and remove connections, each in its own entity group,
+ * so those transactions must be cross-group. When a cache is set, lookups are served from it. Once a write has
+ * committed, its entries are replaced in the cache by a short-lived marker, and lookups only ever add entries that
+ * are absent, so a lookup that read an entry before the write cannot cache it after the write.
+ * <p>
+ * Connections made before the index was enabled have no entry until {@link #backfill backfilled}, so until then
+ * the index is not read at all: an entry written for a newer connection may lack the users connected earlier.
+ * The last page of the backfill leaves a marker entity that tells every instance the index is complete.
+ */
+class ConnectionIndex {
+
+	/** The most entity groups a cross-group transaction, such as one writing index entries, may span. */
+	static final int MAX_TRANSACTION_ENTITY_GROUPS = 5;
+
+	/** Connections a backfill transaction checks at most, each in its user's entity group, besides the entry. */
+	private static final int BACKFILL_USERS_PER_TRANSACTION = MAX_TRANSACTION_ENTITY_GROUPS - 1;
+
+	/** Cached in place of an entry that was written, for longer than a lookup takes to read and cache an entry. */
+	private static final String EVICTED = "evicted";
+
+	private static final long EVICTED_MILLIS = 10000L;
+
+	private final DatastoreService datastore;
+
+	private final String kind;
+
+	private final boolean complete;
+
+	private final ConnectionCache cache;
+
+	/**
+	 * @param complete whether every connection is known to be indexed, so that a missing entry means no local user
+	 * @param cache the cache lookups are served from, or null
+	 */
+	ConnectionIndex(DatastoreService datastore, String kindPrefix, boolean complete, ConnectionCache cache) {
+		this.datastore = datastore;
+		this.kind = (kindPrefix != null ? kindPrefix : "") + "UserConnectionIndex";
+		this.complete = complete;
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the ids of the local users connected to the given provider user,
+	 * or null if the index does not know, i.e. it is not complete.
+	 */
+	@SuppressWarnings("unchecked")
+	List<String> findUserIds(ConnectionKey connectionKey) {
+		if (!complete) {
+			return null;
+		}
+		String cacheKey = getCacheKey(connectionKey);
+		Object cached = cache != null ? cache.get(cacheKey) : null;
+		if (cached instanceof List) {
+			return (List<String>) cached;
+		}
+		List<String> userIds;
+		try {
+			userIds = Collections.unmodifiableList(new ArrayList<String>(getUserIds(datastore.get(createKey(connectionKey)))));
+		} catch (EntityNotFoundException e) {
+			userIds = Collections.emptyList();
+		}
+		// the entry may have been written since it was read, unless the cache still holds nothing at all
+		if (cache != null && cached == null) {
+			cache.putIfAbsent(cacheKey, userIds);
+		}
+		return userIds;
+	}
+
+	/** Records, within the given transaction, that the local user is connected to the provider user. */
+	void addUserId(Transaction txn, ConnectionKey connectionKey, String userId) {
+		Key key = createKey(connectionKey);
+		Entity entry;
+		try {
+			entry = datastore.get(txn, key);
+		} catch (EntityNotFoundException e) {
+			entry = new Entity(key);
+		}
+		List<String> userIds = new ArrayList<String>(getUserIds(entry));
+		if (!userIds.contains(userId)) {
+			userIds.add(userId);
+			entry.setUnindexedProperty("userIds", userIds);
+			datastore.put(txn, entry);
+		}
+	}
+
+	/** Records, within the given transaction, that the local user is no longer connected to the provider users. */
+	void removeUserId(Transaction txn, Collection<ConnectionKey> connectionKeys, String userId) {
+		List<Key> keys = new ArrayList<Key>(connectionKeys.size());
+		for (ConnectionKey connectionKey : connectionKeys) {
+			keys.add(createKey(connectionKey));
+		}
+		List<Entity> updated = new ArrayList<Entity>();
+		List<Key> emptied = new ArrayList<Key>();
+		for (Map.Entry<Key, Entity> entry : datastore.get(txn, keys).entrySet()) {
+			List<String> userIds = new ArrayList<String>(getUserIds(entry.getValue()));
+			if (userIds.remove(userId)) {
+				if (userIds.isEmpty()) {
+					emptied.add(entry.getKey());
+				} else {
+					entry.getValue().setUnindexedProperty("userIds", userIds);
+					updated.add(entry.getValue());
+				}
+			}
+		}
+		if (!updated.isEmpty()) {
+			datastore.put(txn, updated);
+		}
+		if (!emptied.isEmpty()) {
+			datastore.delete(txn, emptied);
+		}
+	}
+
+	/**
+	 * Evicts cached lookups for the given provider users; called after committing a write to their entries.
+	 * Lookups are not cached again until the marker left in their place expires.
+	 */
+	void evict(Collection<ConnectionKey> connectionKeys) {
+		if (cache != null) {
+			for (ConnectionKey connectionKey : connectionKeys) {
+				cache.put(getCacheKey(connectionKey), EVICTED, EVICTED_MILLIS);
+			}
+		}
+	}
+
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Adds the connections of one page of the given connection kind to the index.
+	 * Each entry is updated in a transaction that also reads the connections it adds, so a connection removed
+	 * meanwhile is not indexed again. Pages may be run again, e.g. when a task is retried; entries only gain
+	 * the users they miss. The last page marks the index complete.
+	 * @param connectionKind the kind of the connection entities
+	 * @param cursor where the previous page ended, or null for the first page
+	 * @param pageSize the maximum number of connections in the page
+	 * @return the cursor to run the next page from, or null if this page was the last one
+	 */
+	Cursor backfill(String connectionKind, Cursor cursor, int pageSize) {
+		Page<Entity> page = DatastoreUtils.queryForPage(datastore.prepare(new Query(connectionKind)), cursor, pageSize, entityMapper);
+		Map<ConnectionKey, List<Key>> connections = new LinkedHashMap<ConnectionKey, List<Key>>();
+		for (Entity connection : page.getResults()) {
+			ConnectionKey connectionKey = new ConnectionKey((String) connection.getProperty("providerId"), (String) connection.getProperty("providerUserId"));
+			List<Key> keys = connections.get(connectionKey);
+			if (keys == null) {
+				keys = new ArrayList<Key>();
+				connections.put(connectionKey, keys);
+			}
+			keys.add(connection.getKey());
+		}
+		for (Map.Entry<ConnectionKey, List<Key>> entry : connections.entrySet()) {
+			List<Key> keys = entry.getValue();
+			for (int i = 0; i < keys.size(); i += BACKFILL_USERS_PER_TRANSACTION) {
+				addConnections(entry.getKey(), keys.subList(i, Math.min(i + BACKFILL_USERS_PER_TRANSACTION, keys.size())));
+			}
+		}
+		evict(connections.keySet());
+		if (!page.hasNext()) {
+			datastore.put(new Entity(getCompleteMarkerKey()));
+		}
+		return page.getNextCursor();
+	}
+
+	private void addConnections(ConnectionKey connectionKey, List<Key> connectionKeys) {
+		Key key = createKey(connectionKey);
+		Transaction txn = datastore.beginTransaction(withXG(true));
+		try {
+			Entity entry;
+			try {
+				entry = datastore.get(txn, key);
+			} catch (EntityNotFoundException e) {
+				entry = new Entity(key);
+			}
+			List<String> userIds = new ArrayList<String>(getUserIds(entry));
+			boolean changed = false;
+			for (Key connection : datastore.get(txn, connectionKeys).keySet()) {
+				String userId = connection.getParent().getName();
+				if (!userIds.contains(userId)) {
+					userIds.add(userId);
+					changed = true;
+				}
+			}
+			if (changed) {
+				entry.setUnindexedProperty("userIds", userIds);
+				datastore.put(txn, entry);
+			}
+			txn.commit();
+		} finally {
+			if (txn.isActive()) txn.rollback();
+		}
+	}
+
+	/** Returns whether a {@link #backfill} has run to its last page, i.e. every connection is indexed. */
+	boolean isMarkedComplete() {
+		try {
+			datastore.get(getCompleteMarkerKey());
+			return true;
+		} catch (EntityNotFoundException e) {
+			return false;
+		}
+	}
+
+	private Key getCompleteMarkerKey() {
+		return KeyFactory.createKey(kind + "Status", "complete");
+	}
+
+	Key createKey(ConnectionKey connectionKey) {
+		return KeyFactory.createKey(kind, connectionKey.getProviderId() + ":" + connectionKey.getProviderUserId());
+	}
+
+	@SuppressWarnings("unchecked")
+	static List<String> getUserIds(Entity entry) {
+		List<String> userIds = (List<String>) entry.getProperty("userIds");
+		return userIds != null ? userIds : Collections.<String>emptyList();
+	}
+
+	private static final EntityMapper<Entity> entityMapper = new EntityMapper<Entity>() {
+		public Entity mapEntity(Entity entity) {
+			return entity;
+		}
+	};
+
+	private String getCacheKey(ConnectionKey connectionKey) {
+		return kind + "@" + connectionKey.getProviderId() + ":" + connectionKey.getProviderUserId();
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.core.GenericTypeResolver;
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.intercept.ConnectionInterceptor;
+
+/**
+ * Immutable table of {@link ConnectionInterceptor}s by the API type they intercept, shared by all repositories.
+ * Each interceptor's API type is resolved once, when the table is built, and the interceptors of each connection
+ * factory class are resolved on first use and remembered.
+ */
+final class ConnectionInterceptorTable {
+
+	static final ConnectionInterceptorTable EMPTY = new ConnectionInterceptorTable(Collections.<ConnectionInterceptor<?>>emptyList());
+
+	private final List<ConnectionInterceptor<?>> interceptors;
+
+	private final Map<Class<?>, List<ConnectionInterceptor<?>>> interceptorsByApiType;
+
+	private final ConcurrentMap<Class<?>, List<ConnectionInterceptor<?>>> interceptorsByFactoryType =
+			new ConcurrentHashMap<Class<?>, List<ConnectionInterceptor<?>>>();
+
+	private ConnectionInterceptorTable(List<ConnectionInterceptor<?>> interceptors) {
+		this.interceptors = interceptors;
+		Map<Class<?>, List<ConnectionInterceptor<?>>> byApiType = new LinkedHashMap<Class<?>, List<ConnectionInterceptor<?>>>();
+		for (ConnectionInterceptor<?> interceptor : interceptors) {
+			Class<?> apiType = GenericTypeResolver.resolveTypeArgument(interceptor.getClass(), ConnectionInterceptor.class);
+			List<ConnectionInterceptor<?>> typedInterceptors = byApiType.get(apiType);
+			if (typedInterceptors == null) {
+				typedInterceptors = new ArrayList<ConnectionInterceptor<?>>();
+				byApiType.put(apiType, typedInterceptors);
+			}
+			typedInterceptors.add(interceptor);
+		}
+		for (Entry<Class<?>, List<ConnectionInterceptor<?>>> entry : byApiType.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
+		}
+		this.interceptorsByApiType = byApiType;
+	}
+
+	/** Returns a table with the given interceptors registered after those of this table. */
+	ConnectionInterceptorTable with(List<? extends ConnectionInterceptor<?>> addedInterceptors) {
+		if (addedInterceptors.isEmpty()) {
+			return this;
+		}
+		List<ConnectionInterceptor<?>> combined = new ArrayList<ConnectionInterceptor<?>>(interceptors.size() + addedInterceptors.size());
+		combined.addAll(interceptors);
+		combined.addAll(addedInterceptors);
+		return new ConnectionInterceptorTable(Collections.unmodifiableList(combined));
+	}
+
+	/** Returns the interceptors of connections created by the given factory, in registration order. */
+	List<ConnectionInterceptor<?>> interceptorsFor(ConnectionFactory<?> connectionFactory) {
+		if (interceptors.isEmpty()) {
+			return Collections.emptyList();
+		}
+		Class<?> factoryType = connectionFactory.getClass();
+		List<ConnectionInterceptor<?>> typedInterceptors = interceptorsByFactoryType.get(factoryType);
+		if (typedInterceptors == null) {
+			// connection classes are generic, the API type is only bound by the provider's connection factory
+			Class<?> apiType = GenericTypeResolver.resolveTypeArgument(factoryType, ConnectionFactory.class);
+			typedInterceptors = interceptorsByApiType.get(apiType);
+			if (typedInterceptors == null) {
+				typedInterceptors = Collections.emptyList();
+			}
+			interceptorsByFactoryType.putIfAbsent(factoryType, typedInterceptors);
+		}
+		return typedInterceptors;
+	}
+
+}
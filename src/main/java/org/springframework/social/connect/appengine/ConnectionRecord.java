@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.io.Serializable;
+
+import org.springframework.social.connect.ConnectionKey;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Immutable copy of the properties of a single {@code UserConnection} entity.
+ * Tokens are kept exactly as stored, that is still encrypted.
+ */
+final class ConnectionRecord implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String providerId;
+	private final String providerUserId;
+	private final long rank;
+	private final String displayName;
+	private final String profileUrl;
+	private final String imageUrl;
+	private final String accessToken;
+	private final String secret;
+	private final String refreshToken;
+	private final Long expireTime;
+
+	ConnectionRecord(String providerId, String providerUserId, long rank, String displayName, String profileUrl,
+			String imageUrl, String accessToken, String secret, String refreshToken, Long expireTime) {
+		this.providerId = providerId;
+		this.providerUserId = providerUserId;
+		this.rank = rank;
+		this.displayName = displayName;
+		this.profileUrl = profileUrl;
+		this.imageUrl = imageUrl;
+		this.accessToken = accessToken;
+		this.secret = secret;
+		this.refreshToken = refreshToken;
+		this.expireTime = expireTime;
+	}
+
+	static ConnectionRecord fromEntity(Entity entity) {
+		return new ConnectionRecord(
+			(String) entity.getProperty("providerId"),
+			(String) entity.getProperty("providerUserId"),
+			(Long) entity.getProperty("rank"),
+			(String) entity.getProperty("displayName"),
+			(String) entity.getProperty("profileUrl"),
+			(String) entity.getProperty("imageUrl"),
+			(String) entity.getProperty("accessToken"),
+			(String) entity.getProperty("secret"),
+			(String) entity.getProperty("refreshToken"),
+			(Long) entity.getProperty("expireTime")
+		);
+	}
+
+	/** Sets the properties of a {@code UserConnection} entity, the reverse of {@link #fromEntity(Entity)}. */
+	void copyTo(Entity entity) {
+		entity.setProperty("providerId", providerId);
+		entity.setProperty("providerUserId", providerUserId);
+		entity.setProperty("rank", rank);
+		entity.setProperty("displayName", displayName);
+		entity.setProperty("profileUrl", profileUrl);
+		entity.setProperty("imageUrl", imageUrl);
+		entity.setProperty("accessToken", accessToken);
+		entity.setProperty("secret", secret);
+		entity.setProperty("refreshToken", refreshToken);
+		entity.setProperty("expireTime", expireTime);
+	}
+
+	ConnectionKey getKey() {
+		return new ConnectionKey(providerId, providerUserId);
+	}
+
+	boolean isPrimary() {
+		return rank == 1L;
+	}
+
+	String getProviderId() {
+		return providerId;
+	}
+
+	String getProviderUserId() {
+		return providerUserId;
+	}
+
+	long getRank() {
+		return rank;
+	}
+
+	String getDisplayName() {
+		return displayName;
+	}
+
+	String getProfileUrl() {
+		return profileUrl;
+	}
+
+	String getImageUrl() {
+		return imageUrl;
+	}
+
+	String getAccessToken() {
+		return accessToken;
+	}
+
+	String getSecret() {
+		return secret;
+	}
+
+	String getRefreshToken() {
+		return refreshToken;
+	}
+
+	Long getExpireTime() {
+		return expireTime;
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.appengine.api.datastore.Blob;
+
+/**
+ * Compact binary form of {@link ConnectionRecord}s, used to store a user's whole connection list in a single property.
+ */
+final class ConnectionRecordCodec {
+
+	private static final int FORMAT_VERSION = 1;
+
+	private ConnectionRecordCodec() {
+	}
+
+	static Blob encode(List<ConnectionRecord> records) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + records.size() * 256);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(FORMAT_VERSION);
+			out.writeInt(records.size());
+			for (ConnectionRecord record : records) {
+				writeRecord(out, record);
+			}
+			out.flush();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to encode connection records", e);
+		}
+		return new Blob(bytes.toByteArray());
+	}
+
+	static List<ConnectionRecord> decode(Blob blob) {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob.getBytes()));
+		try {
+			int formatVersion = in.readByte();
+			if (formatVersion != FORMAT_VERSION) {
+				throw new IllegalStateException("Unsupported connection records format " + formatVersion);
+			}
+			int size = in.readInt();
+			List<ConnectionRecord> records = new ArrayList<ConnectionRecord>(size);
+			for (int i = 0; i < size; i++) {
+				records.add(readRecord(in));
+			}
+			return records;
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to decode connection records", e);
+		}
+	}
+
+	static void writeRecord(DataOutput out, ConnectionRecord record) throws IOException {
+		out.writeUTF(record.getProviderId());
+		out.writeUTF(record.getProviderUserId());
+		out.writeLong(record.getRank());
+		writeNullableString(out, record.getDisplayName());
+		writeNullableString(out, record.getProfileUrl());
+		writeNullableString(out, record.getImageUrl());
+		writeNullableString(out, record.getAccessToken());
+		writeNullableString(out, record.getSecret());
+		writeNullableString(out, record.getRefreshToken());
+		out.writeBoolean(record.getExpireTime() != null);
+		if (record.getExpireTime() != null) {
+			out.writeLong(record.getExpireTime());
+		}
+	}
+
+	static ConnectionRecord readRecord(DataInput in) throws IOException {
+		String providerId = in.readUTF();
+		String providerUserId = in.readUTF();
+		long rank = in.readLong();
+		String displayName = readNullableString(in);
+		String profileUrl = readNullableString(in);
+		String imageUrl = readNullableString(in);
+		String accessToken = readNullableString(in);
+		String secret = readNullableString(in);
+		String refreshToken = readNullableString(in);
+		Long expireTime = in.readBoolean() ? in.readLong() : null;
+		return new ConnectionRecord(providerId, providerUserId, rank, displayName, profileUrl, imageUrl,
+				accessToken, secret, refreshToken, expireTime);
+	}
+
+	private static void writeNullableString(DataOutput out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.io.Serializable;
+
+import org.springframework.social.connect.ConnectionKey;
+
+/**
+ * The descriptive properties of a connection, without its tokens, for listing a user's connections.
+ * Unlike a {@link org.springframework.social.connect.Connection}, a summary is read without decrypting
+ * anything and gives no access to the provider's API.
+ * @see DatastoreConnectionRepository#findConnectionSummaries()
+ */
+public final class ConnectionSummary implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String providerId;
+	private final String providerUserId;
+	private final String displayName;
+	private final String profileUrl;
+	private final String imageUrl;
+
+	public ConnectionSummary(String providerId, String providerUserId, String displayName, String profileUrl, String imageUrl) {
+		this.providerId = providerId;
+		this.providerUserId = providerUserId;
+		this.displayName = displayName;
+		this.profileUrl = profileUrl;
+		this.imageUrl = imageUrl;
+	}
+
+	static ConnectionSummary fromRecord(ConnectionRecord record) {
+		return new ConnectionSummary(record.getProviderId(), record.getProviderUserId(), record.getDisplayName(),
+				record.getProfileUrl(), record.getImageUrl());
+	}
+
+	public ConnectionKey getKey() {
+		return new ConnectionKey(providerId, providerUserId);
+	}
+
+	public String getProviderId() {
+		return providerId;
+	}
+
+	public String getProviderUserId() {
+		return providerUserId;
+	}
+
+	public String getDisplayName() {
+		return displayName;
+	}
+
+	public String getProfileUrl() {
+		return profileUrl;
+	}
+
+	public String getImageUrl() {
+		return imageUrl;
+	}
+
+}
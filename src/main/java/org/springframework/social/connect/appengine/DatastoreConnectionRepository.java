@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * {@link ConnectionRepository} with the additional operations the AppEngine Datastore can serve efficiently.
+ * @see AppEngineUsersConnectionRepository#createConnectionRepository(String)
+ */
+public interface DatastoreConnectionRepository extends ConnectionRepository {
+
+	/**
+	 * Get the connections with the given keys, fetched by key in a single batch.
+	 * @param connectionKeys the keys of the connections to get
+	 * @return the connections found, in the iteration order of the given keys; keys without a connection are left out
+	 */
+	Map<ConnectionKey, Connection<?>> getConnections(Collection<ConnectionKey> connectionKeys);
+
+	/**
+	 * Find summaries of all connections the current user has across all providers, for listing them.
+	 * Only descriptive properties are read and no tokens are decrypted.
+	 * @return the summaries, grouped and ordered like {@link #findAllConnections()}
+	 */
+	MultiValueMap<String, ConnectionSummary> findConnectionSummaries();
+
+}
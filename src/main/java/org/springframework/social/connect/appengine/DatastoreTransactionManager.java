@@ -0,0 +1,161 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import java.util.ConcurrentModificationException;
+
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionSystemException;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.ResourceHolderSupport;
+import org.springframework.transaction.support.SmartTransactionObject;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+
+/**
+ * {@link org.springframework.transaction.PlatformTransactionManager} running {@code @Transactional} methods in a datastore
+ * transaction, which is bound to the thread for the duration of the method.
+ * <p>
+ * The datastore treats the transaction it began last on a thread as the current one: operations called without an explicit
+ * transaction run in it, and code can look it up with {@link DatastoreService#getCurrentTransaction(Transaction)} to take part
+ * rather than begin its own. A commit that loses to a concurrent write of the same entity group fails with a
+ * {@link ConcurrencyFailureException}; the transaction is rolled back and may be retried.
+ * <p>
+ * Datastore transactions span a single entity group unless cross-group transactions are enabled, and have no isolation
+ * levels or timeouts to set; those of the transaction definition are ignored.
+ */
+public class DatastoreTransactionManager extends AbstractPlatformTransactionManager {
+
+	private static final long serialVersionUID = 1L;
+
+	private transient final DatastoreService datastore;
+
+	private boolean crossGroup;
+
+	public DatastoreTransactionManager(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Sets whether transactions may span up to 25 entity groups, at some cost in latency. Defaults to false.
+	 */
+	public void setCrossGroup(boolean crossGroup) {
+		this.crossGroup = crossGroup;
+	}
+
+	@Override
+	protected Object doGetTransaction() {
+		return new DatastoreTransactionObject((TransactionHolder) TransactionSynchronizationManager.getResource(datastore));
+	}
+
+	@Override
+	protected boolean isExistingTransaction(Object transaction) {
+		return ((DatastoreTransactionObject) transaction).holder != null;
+	}
+
+	@Override
+	protected void doBegin(Object transaction, TransactionDefinition definition) {
+		TransactionHolder holder = new TransactionHolder(datastore.beginTransaction(TransactionOptions.Builder.withXG(crossGroup)));
+		holder.setSynchronizedWithTransaction(true);
+		((DatastoreTransactionObject) transaction).holder = holder;
+		TransactionSynchronizationManager.bindResource(datastore, holder);
+	}
+
+	@Override
+	protected Object doSuspend(Object transaction) {
+		((DatastoreTransactionObject) transaction).holder = null;
+		return TransactionSynchronizationManager.unbindResource(datastore);
+	}
+
+	@Override
+	protected void doResume(Object transaction, Object suspendedResources) {
+		TransactionSynchronizationManager.bindResource(datastore, suspendedResources);
+	}
+
+	@Override
+	protected void doCommit(DefaultTransactionStatus status) {
+		Transaction txn = ((DatastoreTransactionObject) status.getTransaction()).holder.transaction;
+		try {
+			txn.commit();
+		} catch (ConcurrentModificationException e) {
+			throw new ConcurrencyFailureException("Datastore transaction " + txn.getId() + " lost to a concurrent write", e);
+		} catch (DatastoreFailureException e) {
+			throw new TransactionSystemException("Could not commit datastore transaction " + txn.getId(), e);
+		}
+	}
+
+	@Override
+	protected void doRollback(DefaultTransactionStatus status) {
+		Transaction txn = ((DatastoreTransactionObject) status.getTransaction()).holder.transaction;
+		try {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		} catch (DatastoreFailureException e) {
+			throw new TransactionSystemException("Could not roll back datastore transaction " + txn.getId(), e);
+		}
+	}
+
+	@Override
+	protected void doSetRollbackOnly(DefaultTransactionStatus status) {
+		((DatastoreTransactionObject) status.getTransaction()).holder.setRollbackOnly();
+	}
+
+	@Override
+	protected void doCleanupAfterCompletion(Object transaction) {
+		TransactionHolder holder = ((DatastoreTransactionObject) transaction).holder;
+		TransactionSynchronizationManager.unbindResource(datastore);
+		// a commit that failed half way leaves the transaction open
+		if (holder.transaction.isActive()) {
+			holder.transaction.rollback();
+		}
+		holder.clear();
+	}
+
+	private static final class TransactionHolder extends ResourceHolderSupport {
+
+		private final Transaction transaction;
+
+		private TransactionHolder(Transaction transaction) {
+			this.transaction = transaction;
+		}
+	}
+
+	private static final class DatastoreTransactionObject implements SmartTransactionObject {
+
+		private TransactionHolder holder;
+
+		private DatastoreTransactionObject(TransactionHolder holder) {
+			this.holder = holder;
+		}
+
+		@Override
+		public boolean isRollbackOnly() {
+			return holder.isRollbackOnly();
+		}
+
+		@Override
+		public void flush() {
+		}
+	}
+
+}
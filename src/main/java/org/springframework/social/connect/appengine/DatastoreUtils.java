@@ -1,14 +1,19 @@
 package org.springframework.social.connect.appengine;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.QueryResultList;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class DatastoreUtils {
 	
@@ -25,17 +30,136 @@ public class DatastoreUtils {
 	}
 	
 	public static <T> Map<Key, T> queryForMap(PreparedQuery pq, EntityMapper<T> entityMapper) {
+		return queryForMap(pq, FetchOptions.Builder.withDefaults(), entityMapper);
+	}
+	
+	public static <T> Map<Key, T> queryForMap(PreparedQuery pq, FetchOptions fetchOptions, EntityMapper<T> entityMapper) {
 		Map<Key, T> resultMap = new HashMap<Key, T>();
-		for (Entity entity : pq.asIterable()) {
+		for (Entity entity : pq.asIterable(fetchOptions)) {
 			resultMap.put(entity.getKey(), entityMapper.mapEntity(entity));
 		}
 		return resultMap;
 	}
 
+	/**
+	 * Reads a single page of results, starting at the given cursor.
+	 * @param cursor where the previous page ended, or null for the first page
+	 * @param pageSize the maximum number of results in the page
+	 */
+	public static <T> Page<T> queryForPage(PreparedQuery pq, Cursor cursor, int pageSize, EntityMapper<T> entityMapper) {
+		FetchOptions fetchOptions = FetchOptions.Builder.withLimit(pageSize).prefetchSize(pageSize).chunkSize(pageSize);
+		if (cursor != null) {
+			fetchOptions.startCursor(cursor);
+		}
+		QueryResultList<Entity> entities = pq.asQueryResultList(fetchOptions);
+		List<T> resultList = new ArrayList<T>(entities.size());
+		for (Entity entity : entities) {
+			resultList.add(entityMapper.mapEntity(entity));
+		}
+		return new Page<T>(resultList, entities.size() < pageSize ? null : entities.getCursor(), entities.getCursor());
+	}
+
+	/**
+	 * Maps the results of a query run on an {@link com.google.appengine.api.datastore.AsyncDatastoreService},
+	 * whose results are already being fetched in the background. Mapping happens on the first call to get.
+	 * <p>
+	 * The datastore hands out such results as a list that blocks until they arrive, not as a future, so there is
+	 * nothing to wait on with a timeout or to cancel: {@code get(long, TimeUnit)} waits as long as {@code get()} does,
+	 * and {@code cancel} is not supported and returns false.
+	 */
+	public static <T> Future<List<T>> queryForListAsync(PreparedQuery pq, FetchOptions fetchOptions, EntityMapper<T> entityMapper) {
+		return new MappedQueryFuture<T>(pq.asList(fetchOptions), entityMapper);
+	}
+
     public static interface EntityMapper<T> {
 		/** Implementations must implement this method to map each {@code Entity} */
 		T mapEntity(Entity entity);
 	}
 
-	
+	/** A page of query results, as read by {@link DatastoreUtils#queryForPage}. */
+	public static final class Page<T> {
+
+		private final List<T> results;
+
+		private final Cursor nextCursor;
+
+		private final Cursor endCursor;
+
+		private Page(List<T> results, Cursor nextCursor, Cursor endCursor) {
+			this.results = results;
+			this.nextCursor = nextCursor;
+			this.endCursor = endCursor;
+		}
+
+		public List<T> getResults() {
+			return results;
+		}
+
+		/** Returns the cursor to read the next page from, or null if this page is the last one. */
+		public Cursor getNextCursor() {
+			return nextCursor;
+		}
+
+		/** Returns the cursor right after the last result of this page, also when it is the last one. */
+		public Cursor getEndCursor() {
+			return endCursor;
+		}
+
+		public boolean hasNext() {
+			return nextCursor != null;
+		}
+	}
+
+	private static final class MappedQueryFuture<T> implements Future<List<T>> {
+
+		private final List<Entity> entities;
+
+		private final EntityMapper<T> entityMapper;
+
+		private List<T> resultList;
+
+		private MappedQueryFuture(List<Entity> entities, EntityMapper<T> entityMapper) {
+			this.entities = entities;
+			this.entityMapper = entityMapper;
+		}
+
+		@Override
+		public synchronized List<T> get() throws ExecutionException {
+			if (resultList == null) {
+				try {
+					List<T> mapped = new ArrayList<T>(entities.size());
+					for (Entity entity : entities) {
+						mapped.add(entityMapper.mapEntity(entity));
+					}
+					resultList = mapped;
+				} catch (RuntimeException e) {
+					throw new ExecutionException(e);
+				}
+			}
+			return resultList;
+		}
+
+		/** Waits for the results without a timeout, see {@link DatastoreUtils#queryForListAsync}. */
+		@Override
+		public List<T> get(long timeout, TimeUnit unit) throws ExecutionException {
+			return get();
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return resultList != null;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		/** Not supported: the query cannot be cancelled once run, so this does nothing and returns false. */
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+	}
+
 }
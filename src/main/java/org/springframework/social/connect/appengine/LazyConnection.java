@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionFactory;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.UserProfile;
+import org.springframework.social.connect.appengine.AppEngineConnectionRepository.ServiceProviderConnectionMapper;
+
+/**
+ * {@link Connection} that keeps the tokens of its stored record encrypted until they are needed.
+ * The key and descriptive properties are answered from the record; the first call needing the provider,
+ * e.g. {@link #getApi()} or {@link #createData()}, decrypts the tokens and creates the actual connection,
+ * which every later call is delegated to. Serializing a lazy connection serializes the actual one.
+ */
+final class LazyConnection<A> implements Connection<A> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final ConnectionRecord record;
+
+	private final ConnectionFactory<A> connectionFactory;
+
+	private final ServiceProviderConnectionMapper connectionMapper;
+
+	private volatile Connection<A> connection;
+
+	LazyConnection(ConnectionRecord record, ConnectionFactory<A> connectionFactory, ServiceProviderConnectionMapper connectionMapper) {
+		this.record = record;
+		this.connectionFactory = connectionFactory;
+		this.connectionMapper = connectionMapper;
+	}
+
+	@Override
+	public ConnectionKey getKey() {
+		return record.getKey();
+	}
+
+	@Override
+	public String getDisplayName() {
+		Connection<A> connection = this.connection;
+		return connection != null ? connection.getDisplayName() : record.getDisplayName();
+	}
+
+	@Override
+	public String getProfileUrl() {
+		Connection<A> connection = this.connection;
+		return connection != null ? connection.getProfileUrl() : record.getProfileUrl();
+	}
+
+	@Override
+	public String getImageUrl() {
+		Connection<A> connection = this.connection;
+		return connection != null ? connection.getImageUrl() : record.getImageUrl();
+	}
+
+	@Override
+	public void sync() {
+		getConnection().sync();
+	}
+
+	@Override
+	public boolean test() {
+		return getConnection().test();
+	}
+
+	@Override
+	public boolean hasExpired() {
+		return getConnection().hasExpired();
+	}
+
+	@Override
+	public void refresh() {
+		getConnection().refresh();
+	}
+
+	@Override
+	public UserProfile fetchUserProfile() {
+		return getConnection().fetchUserProfile();
+	}
+
+	@Override
+	public void updateStatus(String message) {
+		getConnection().updateStatus(message);
+	}
+
+	@Override
+	public A getApi() {
+		return getConnection().getApi();
+	}
+
+	@Override
+	public ConnectionData createData() {
+		return getConnection().createData();
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof Connection)) {
+			return false;
+		}
+		return getKey().equals(((Connection<?>) other).getKey());
+	}
+
+	@Override
+	public int hashCode() {
+		return getKey().hashCode();
+	}
+
+	private Connection<A> getConnection() {
+		Connection<A> connection = this.connection;
+		if (connection == null) {
+			synchronized (this) {
+				connection = this.connection;
+				if (connection == null) {
+					connection = connectionFactory.createConnection(connectionMapper.mapConnectionData(record));
+					this.connection = connection;
+				}
+			}
+		}
+		return connection;
+	}
+
+	private Object writeReplace() {
+		return getConnection();
+	}
+
+}
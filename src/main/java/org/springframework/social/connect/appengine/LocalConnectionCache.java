@@ -0,0 +1,35 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import org.springframework.social.cache.LocalCache;
+
+/**
+ * In-process {@link ConnectionCache} keeping the least recently used entries up to a fixed capacity.
+ * Entries also expire after a time to live, which bounds how long this instance can miss writes
+ * made through other instances of the application.
+ */
+public class LocalConnectionCache extends LocalCache implements ConnectionCache {
+
+	/**
+	 * @param maxEntries the maximum number of entries to keep
+	 * @param timeToLiveMillis how long an entry stays valid after it was put
+	 */
+	public LocalConnectionCache(int maxEntries, long timeToLiveMillis) {
+		super(maxEntries, timeToLiveMillis);
+	}
+
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import org.springframework.social.cache.MemcacheCache;
+
+import com.google.appengine.api.memcache.MemcacheService;
+
+/**
+ * {@link ConnectionCache} backed by the AppEngine memcache, shared by all instances of the application.
+ * Memcache may drop values at any time; such evictions are only counted as misses.
+ */
+public class MemcacheConnectionCache extends MemcacheCache implements ConnectionCache {
+
+	/**
+	 * @param memcache the memcache service, preferably bound to a dedicated namespace
+	 * @param expirationSeconds how long a value stays cached after it was put
+	 */
+	public MemcacheConnectionCache(MemcacheService memcache, int expirationSeconds) {
+		super(memcache, expirationSeconds);
+	}
+
+}
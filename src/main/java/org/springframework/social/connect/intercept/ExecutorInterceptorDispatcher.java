@@ -0,0 +1,233 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.intercept;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link InterceptorDispatcher} that runs callbacks on an {@link Executor}, off the writing request's thread.
+ * <p>
+ * Callbacks of each user go through a lane of their own, which runs them one at a time in dispatch order;
+ * lanes of different users run concurrently. At most {@code capacity} callbacks are pending at once; once full,
+ * the {@link OverflowPolicy} decides what happens to further callbacks. Callbacks that throw are logged and counted.
+ * <p>
+ * On App Engine the executor's threads must be allowed to outlive requests, i.e. come from
+ * {@code ThreadManager.backgroundThreadFactory()} on an instance with manual or basic scaling.
+ */
+public class ExecutorInterceptorDispatcher implements InterceptorDispatcher {
+
+	private static final Logger log = Logger.getLogger(ExecutorInterceptorDispatcher.class.getName());
+
+	/** What to do with a callback dispatched while {@code capacity} callbacks are pending. */
+	public static enum OverflowPolicy {
+		/** Wait for a pending callback to complete; keeps every callback and their order. */
+		BLOCK,
+		/** Run the callback in the dispatching thread; it may overtake callbacks of the same user still pending. */
+		CALLER_RUNS,
+		/** Drop the callback. */
+		DISCARD
+	}
+
+	private final Executor executor;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final int capacityLimit;
+
+	private final Semaphore capacity;
+
+	private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+	private final AtomicLong dispatched = new AtomicLong();
+
+	private final AtomicLong completed = new AtomicLong();
+
+	private final AtomicLong failed = new AtomicLong();
+
+	private final AtomicLong callerRuns = new AtomicLong();
+
+	private final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * @param executor runs the lanes of users with pending callbacks
+	 * @param capacity the most callbacks pending at once
+	 * @param overflowPolicy what to do with callbacks dispatched beyond the capacity
+	 */
+	public ExecutorInterceptorDispatcher(Executor executor, int capacity, OverflowPolicy overflowPolicy) {
+		this.executor = executor;
+		this.capacityLimit = capacity;
+		this.capacity = new Semaphore(capacity);
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	@Override
+	public void dispatch(String userId, Runnable callbacks) {
+		dispatched.incrementAndGet();
+		if (!capacity.tryAcquire()) {
+			switch (overflowPolicy) {
+			case BLOCK:
+				try {
+					capacity.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					runInCaller(callbacks);
+					return;
+				}
+				break;
+			case CALLER_RUNS:
+				runInCaller(callbacks);
+				return;
+			default:
+				discarded.incrementAndGet();
+				log.warning("Interceptor callbacks of user " + userId + " discarded, " + getPendingCount() + " callbacks pending");
+				return;
+			}
+		}
+		enqueue(userId, callbacks);
+	}
+
+	private void enqueue(String userId, Runnable callbacks) {
+		while (true) {
+			Lane lane = lanes.get(userId);
+			if (lane == null) {
+				lane = new Lane(userId);
+				Lane existing = lanes.putIfAbsent(userId, lane);
+				if (existing != null) {
+					lane = existing;
+				}
+			}
+			boolean start;
+			synchronized (lane) {
+				if (lane.retired) {
+					// the lane drained and left the map meanwhile, use a new one
+					continue;
+				}
+				lane.callbacks.add(callbacks);
+				start = !lane.running;
+				lane.running = true;
+			}
+			if (start) {
+				try {
+					executor.execute(lane);
+				} catch (RejectedExecutionException e) {
+					// e.g. a shut down executor: drain the lane here rather than strand its callbacks
+					lane.run();
+				}
+			}
+			return;
+		}
+	}
+
+	private void runInCaller(Runnable callbacks) {
+		callerRuns.incrementAndGet();
+		run(callbacks);
+	}
+
+	/**
+	 * Runs callbacks, counting and logging whatever they throw, errors included: a lane stops only once it is empty,
+	 * as it would otherwise stay marked running, never retire, and strand the callbacks queued behind.
+	 */
+	private void run(Runnable callbacks) {
+		try {
+			callbacks.run();
+			completed.incrementAndGet();
+		} catch (Throwable e) {
+			failed.incrementAndGet();
+			log.log(Level.WARNING, "Interceptor callbacks failed", e);
+		}
+	}
+
+	/** Returns the number of callbacks dispatched, whatever became of them. */
+	public long getDispatchedCount() {
+		return dispatched.get();
+	}
+
+	/** Returns the number of callbacks that ran to completion. */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+
+	/** Returns the number of callbacks that threw. */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/** Returns the number of callbacks run in the dispatching thread, for lack of capacity or once interrupted. */
+	public long getCallerRunsCount() {
+		return callerRuns.get();
+	}
+
+	/** Returns the number of callbacks dropped for lack of capacity. */
+	public long getDiscardedCount() {
+		return discarded.get();
+	}
+
+	/** Returns the number of callbacks queued or running. */
+	public int getPendingCount() {
+		return capacityLimit - capacity.availablePermits();
+	}
+
+	/** Returns the number of users with callbacks queued or running. */
+	public int getActiveLaneCount() {
+		return lanes.size();
+	}
+
+	private final class Lane implements Runnable {
+
+		private final String userId;
+
+		private final Queue<Runnable> callbacks = new ArrayDeque<Runnable>();
+
+		private boolean running;
+
+		private boolean retired;
+
+		private Lane(String userId) {
+			this.userId = userId;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable next;
+				synchronized (this) {
+					next = callbacks.poll();
+					if (next == null) {
+						running = false;
+						retired = true;
+						lanes.remove(userId, this);
+						return;
+					}
+				}
+				try {
+					ExecutorInterceptorDispatcher.this.run(next);
+				} finally {
+					capacity.release();
+				}
+			}
+		}
+	}
+
+}
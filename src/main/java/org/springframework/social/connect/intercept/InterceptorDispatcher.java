@@ -0,0 +1,33 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.intercept;
+
+/**
+ * Runs the "after" callbacks of {@link ConnectionInterceptor}s once a connection write has committed.
+ * "Before" callbacks are never dispatched: they run in the writing thread, so that they can still veto the write.
+ * @see ExecutorInterceptorDispatcher
+ */
+public interface InterceptorDispatcher {
+
+	/**
+	 * Runs or schedules the callbacks of a committed write.
+	 * Callbacks dispatched for the same user must run in the order they were dispatched.
+	 * @param userId the user whose connections were written
+	 * @param callbacks the interceptor callbacks to run
+	 */
+	void dispatch(String userId, Runnable callbacks);
+
+}
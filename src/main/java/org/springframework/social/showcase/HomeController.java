@@ -16,37 +16,44 @@
 package org.springframework.social.showcase;
 
 import java.security.Principal;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 
-import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.appengine.AsyncConnectionRepository;
+import org.springframework.social.connect.appengine.ConnectionSummary;
 import org.springframework.social.showcase.account.AccountRepository;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
+import org.springframework.util.MultiValueMap;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 @Controller
 public class HomeController {
 	
-	private final Provider<ConnectionRepository> connectionRepositoryProvider;
+	private final Provider<AsyncConnectionRepository> connectionRepositoryProvider;
 	
 	private final AccountRepository accountRepository;
 
 	@Inject
-	public HomeController(Provider<ConnectionRepository> connectionRepositoryProvider, AccountRepository accountRepository) {
+	public HomeController(Provider<AsyncConnectionRepository> connectionRepositoryProvider, AccountRepository accountRepository) {
 		this.connectionRepositoryProvider = connectionRepositoryProvider;
 		this.accountRepository = accountRepository;
 	}
 
 	@RequestMapping("/")
-	public String home(Principal currentUser, Model model) {
-		model.addAttribute("connectionsToProviders", getConnectionRepository().findAllConnections());
+	public String home(Principal currentUser, Model model) throws InterruptedException, ExecutionException {
+		// the connections are fetched in the background while the account is looked up
+		// summaries are enough to list connections, and need no token decryption
+		Future<MultiValueMap<String, ConnectionSummary>> connections = getConnectionRepository().findConnectionSummaries();
 		model.addAttribute(accountRepository.findAccountByUsername(currentUser.getName()));
+		model.addAttribute("connectionsToProviders", connections.get());
 		return "home";
 	}
 	
-	private ConnectionRepository getConnectionRepository() {
+	private AsyncConnectionRepository getConnectionRepository() {
 		return connectionRepositoryProvider.get();
 	}
 }
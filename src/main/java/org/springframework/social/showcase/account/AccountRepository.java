@@ -15,10 +15,18 @@
  */
 package org.springframework.social.showcase.account;
 
+import java.util.Collection;
+import java.util.List;
+
 public interface AccountRepository {
 	
 	void createAccount(Account account) throws UsernameAlreadyInUseException;
 
 	Account findAccountByUsername(String username);
+
+	/**
+	 * Looks up the accounts of several users at once, in the order of the usernames; users without an account are left out.
+	 */
+	List<Account> findAccountsByUsernames(Collection<String> usernames);
 	
 }
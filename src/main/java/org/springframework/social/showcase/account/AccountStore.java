@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.account;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.social.cache.ValueCache;
+import org.springframework.social.showcase.logging.TraceLogger;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Transaction;
+
+/**
+ * The one place the {@code account} kind is read and written, shared by {@link AppEngineAccountRepository}
+ * and the user details manager that authentication goes through.
+ * <p>
+ * An account is an entity keyed by username whose properties are set by both: the profile ({@code firstName},
+ * {@code lastName}) and the credentials ({@code password}, {@code enabled}). Writes only ever touch the properties
+ * they are given, in a transaction, so that neither side overwrites what the other stored.
+ * <p>
+ * Writes take part in the datastore transaction current on the thread, such as the one a {@code DatastoreTransactionManager}
+ * begins for a {@code @Transactional} method, and otherwise run in a transaction of their own.
+ * <p>
+ * Reads go through an optional cache, which every write evicts. Cached accounts carry the credentials, so the cache
+ * should be one of this instance, e.g. a {@code LocalCache}, rather than memcache. A write leaves a short-lived marker
+ * in place of the account and reads only add accounts the cache holds nothing for, so a read that got the account
+ * before a write cannot cache it after the write. Callers get their own copy of the cached entity.
+ */
+public class AccountStore {
+
+	private static final String KIND = "account";
+
+	private static final TraceLogger log = TraceLogger.getLogger(AccountStore.class, 10);
+
+	/** Cached in place of an account that was written, for longer than a read takes to get and cache an account. */
+	private static final String EVICTED = "evicted";
+
+	private static final long EVICTED_MILLIS = 10000L;
+
+	private final DatastoreService datastore;
+
+	private ValueCache cache;
+
+	public AccountStore(DatastoreService datastore) {
+		this.datastore = datastore;
+	}
+
+	/**
+	 * Sets the cache accounts are read through, which should not be shared with other instances. None by default.
+	 */
+	public void setCache(ValueCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Returns the account of a user, or null if there is none.
+	 */
+	public Entity findAccount(String username) {
+		Object cached = getCached(username);
+		Entity account = cached instanceof Entity ? (Entity) cached : null;
+		if (account == null) {
+			long start = log.isDebugEnabled() ? System.nanoTime() : 0L;
+			try {
+				account = datastore.get(getKey(username));
+			} catch (EntityNotFoundException e) {
+				return null;
+			}
+			if (start != 0L) {
+				log.debug("Loaded account {0} in {1} us", username, (System.nanoTime() - start) / 1000);
+			}
+			if (cached == null) {
+				putCached(account);
+			}
+		}
+		return account.clone();
+	}
+
+	/**
+	 * Returns the accounts of the given users with a single batch get for those not cached, in the order of the usernames.
+	 * Users without an account are left out.
+	 */
+	public Map<String, Entity> findAccounts(Collection<String> usernames) {
+		Map<String, Entity> accounts = new LinkedHashMap<String, Entity>();
+		List<Key> missing = new ArrayList<Key>();
+		Set<String> evicted = new HashSet<String>();
+		for (String username : usernames) {
+			Object cached = getCached(username);
+			Entity account = cached instanceof Entity ? (Entity) cached : null;
+			// keeps the requested order while the misses are fetched
+			accounts.put(username, account);
+			if (account == null) {
+				missing.add(getKey(username));
+				if (cached != null) {
+					evicted.add(username);
+				}
+			}
+		}
+		if (!missing.isEmpty()) {
+			for (Entity account : datastore.get(missing).values()) {
+				accounts.put(account.getKey().getName(), account);
+				if (!evicted.contains(account.getKey().getName())) {
+					putCached(account);
+				}
+			}
+		}
+		Map<String, Entity> found = new LinkedHashMap<String, Entity>();
+		for (Map.Entry<String, Entity> entry : accounts.entrySet()) {
+			if (entry.getValue() != null) {
+				found.put(entry.getKey(), entry.getValue().clone());
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Creates the account of a user with the given properties.
+	 * @return false if the user has an account already, which is then left as it is
+	 */
+	public boolean createAccount(String username, Map<String, Object> properties) {
+		Key key = getKey(username);
+		Transaction current = datastore.getCurrentTransaction(null);
+		Transaction txn = current != null ? current : datastore.beginTransaction();
+		try {
+			try {
+				datastore.get(txn, key);
+				return false;
+			} catch (EntityNotFoundException e) {
+			}
+			Entity account = new Entity(key);
+			setProperties(account, properties);
+			datastore.put(txn, account);
+			if (txn != current) {
+				txn.commit();
+			}
+			return true;
+		} finally {
+			if (txn != current && txn.isActive()) {
+				txn.rollback();
+			}
+			evict(username);
+		}
+	}
+
+	/**
+	 * Sets the given properties of the account of a user, leaving the others as they are.
+	 * @return false if the user has no account
+	 */
+	public boolean updateAccount(String username, Map<String, Object> properties) {
+		Transaction current = datastore.getCurrentTransaction(null);
+		Transaction txn = current != null ? current : datastore.beginTransaction();
+		try {
+			Entity account;
+			try {
+				account = datastore.get(txn, getKey(username));
+			} catch (EntityNotFoundException e) {
+				return false;
+			}
+			setProperties(account, properties);
+			datastore.put(txn, account);
+			if (txn != current) {
+				txn.commit();
+			}
+			return true;
+		} finally {
+			if (txn != current && txn.isActive()) {
+				txn.rollback();
+			}
+			evict(username);
+		}
+	}
+
+	public void deleteAccount(String username) {
+		try {
+			datastore.delete(getKey(username));
+		} finally {
+			evict(username);
+		}
+	}
+
+	/**
+	 * Drops an account from the cache, for writes made to it without going through this store.
+	 * The account is not cached again until the marker left in its place expires.
+	 * Within a transaction managed by Spring, it is dropped again once the transaction completes,
+	 * since a read in between would cache what the account was before.
+	 */
+	public void evict(final String username) {
+		if (cache == null) {
+			return;
+		}
+		cache.put(username, EVICTED, EVICTED_MILLIS);
+		if (TransactionSynchronizationManager.isSynchronizationActive()) {
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+				@Override
+				public void afterCompletion(int status) {
+					cache.put(username, EVICTED, EVICTED_MILLIS);
+				}
+			});
+		}
+	}
+
+	/** Returns the cached account, the marker of an evicted one, or null. */
+	private Object getCached(String username) {
+		return cache != null ? cache.get(username) : null;
+	}
+
+	private void putCached(Entity account) {
+		if (cache != null) {
+			cache.putIfAbsent(account.getKey().getName(), account.clone());
+		}
+	}
+
+	private static void setProperties(Entity account, Map<String, Object> properties) {
+		for (Map.Entry<String, Object> property : properties.entrySet()) {
+			account.setProperty(property.getKey(), property.getValue());
+		}
+	}
+
+	private static Key getKey(String username) {
+		return KeyFactory.createKey(KIND, username);
+	}
+
+}
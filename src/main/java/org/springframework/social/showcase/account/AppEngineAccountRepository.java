@@ -15,71 +15,63 @@
  */
 package org.springframework.social.showcase.account;
 
-import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
+import org.springframework.social.showcase.logging.TraceLogger;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
-import java.util.logging.Logger;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Repository
 public class AppEngineAccountRepository implements AccountRepository {
 
-    private final static Logger log = Logger.getLogger( AppEngineAccountRepository.class.getName() );
-    private final DatastoreService db;
+    // the home page looks up the account on every view; one lookup in ten is traced
+    private final static TraceLogger log = TraceLogger.getLogger( AppEngineAccountRepository.class, 10 );
+    private final AccountStore accountStore;
 
-	public AppEngineAccountRepository() {
-        this.db = DatastoreServiceFactory.getDatastoreService();
+	@Inject
+	public AppEngineAccountRepository(AccountStore accountStore) {
+        this.accountStore = accountStore;
 	}
 
 	@Transactional
 	public void createAccount(Account user) throws UsernameAlreadyInUseException {
-        log.info( "createAccount: user=" + user );
-        Key k = KeyFactory.createKey( "account", user.getUsername() );
-        try {
-            db.get( k );
-            throw new UsernameAlreadyInUseException( "" );
+        log.info( "createAccount: username={0}", user.getUsername() );
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put( "firstName", user.getFirstName() );
+        properties.put( "lastName", user.getLastName() );
+        properties.put( "username", user.getUsername() );
+        properties.put( "password", user.getPassword() );
+        if ( !accountStore.createAccount( user.getUsername(), properties ) ) {
+            throw new UsernameAlreadyInUseException( user.getUsername() );
         }
-        catch ( EntityNotFoundException ex ) {
-        }
-        Entity e = new Entity( "account", user.getUsername() );
-        e.setProperty( "firstName", user.getFirstName() );
-        e.setProperty( "lastName", user.getLastName() );
-        e.setProperty( "username", user.getUsername() );
-        e.setProperty( "password", user.getPassword() );
-        db.put(e);
 	}
 
 	public Account findAccountByUsername(String username) {
-        log.info( "findAccountByUsername: username=" + username );
-        Key k = KeyFactory.createKey( "account", username );
-        try {
-            Entity e = db.get( k );
-            return new Account( (String)e.getProperty("username"),
-                    null,
-                    (String)e.getProperty("firstName"),
-                    (String)e.getProperty("lastName")
-            );
-        }
-        catch ( EntityNotFoundException ex ) {
-            return null;
+        log.debug( "findAccountByUsername: username={0}", username );
+        Entity e = accountStore.findAccount( username );
+        return e != null ? toAccount( e ) : null;
+	}
+
+	public List<Account> findAccountsByUsernames(Collection<String> usernames) {
+        List<Account> accounts = new ArrayList<Account>();
+        for ( Entity e : accountStore.findAccounts( usernames ).values() ) {
+            accounts.add( toAccount( e ) );
         }
+        return accounts;
+	}
 
-        /*
-        Query q = new Query( "account" );
-        q.setFilter( new Query.FilterPredicate( "username", FilterOperator.EQUAL, username ) );
-        PreparedQuery pq = db.prepare( q );
-        Entity e = pq.asSingleEntity();
-        return new Account( (String)e.getProperty("username"),
+    private static Account toAccount(Entity e) {
+        return new Account( e.getKey().getName(),
                 null,
                 (String)e.getProperty("firstName"),
                 (String)e.getProperty("lastName")
-                );
-        */
-	}
+        );
+    }
 
 }
@@ -15,12 +15,17 @@
  */
 package org.springframework.social.showcase.config;
 
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.context.annotation.ComponentScan.Filter;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.social.cache.LocalCache;
+import org.springframework.social.connect.appengine.DatastoreTransactionManager;
+import org.springframework.social.showcase.account.AccountStore;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 
 /**
@@ -31,10 +36,24 @@ import org.springframework.transaction.annotation.EnableTransactionManagement;
 @Configuration
 @ComponentScan(basePackages = "org.springframework.social.showcase", excludeFilters = { @Filter(Configuration.class) })
 @PropertySource("classpath:org/springframework/social/showcase/config/application.properties")
-//@EnableTransactionManagement
+@EnableTransactionManagement
 public class MainConfig {
 	@Bean
 	public PropertySourcesPlaceholderConfigurer propertyPlaceHolderConfigurer() {
 		return new PropertySourcesPlaceholderConfigurer();
 	}
+
+	@Bean
+	public PlatformTransactionManager transactionManager() {
+		return new DatastoreTransactionManager(DatastoreServiceFactory.getDatastoreService());
+	}
+
+	@Bean
+	public AccountStore accountStore() {
+		AccountStore accountStore = new AccountStore(DatastoreServiceFactory.getDatastoreService());
+		// the home page and sign-ins of a user read the account from this instance rather than the datastore;
+		// accounts hold the password, so they are not put in memcache
+		accountStore.setCache(new LocalCache(1000, 60000));
+		return accountStore;
+	}
 }
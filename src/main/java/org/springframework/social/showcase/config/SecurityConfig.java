@@ -19,6 +19,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
 import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
 import org.springframework.security.config.annotation.web.builders.HttpSecurity;
 import org.springframework.security.config.annotation.web.builders.WebSecurity;
@@ -29,10 +30,17 @@ import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.security.crypto.password.NoOpPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.social.UserIdSource;
+import org.springframework.social.cache.LocalCache;
+import org.springframework.social.connect.appengine.AesTextEncryptor;
 import org.springframework.social.security.AuthenticationNameUserIdSource;
 import org.springframework.social.security.SocialUserDetailsService;
 import org.springframework.social.security.SpringSocialConfigurer;
+import org.springframework.social.showcase.account.AccountStore;
 import org.springframework.social.showcase.security.AppEngineUserDetailsManager;
+import org.springframework.social.showcase.security.AuthenticationTokenSigner;
+import org.springframework.social.showcase.security.CachingUserDetailsManager;
+import org.springframework.social.showcase.security.CookieCsrfTokenRepository;
+import org.springframework.social.showcase.security.CookieSecurityContextRepository;
 import org.springframework.social.showcase.security.SimpleSocialUsersDetailService;
 
 /**
@@ -45,17 +53,24 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter{
 
 	@Autowired
 	private ApplicationContext context;
+
+	@Autowired
+	private Environment environment;
+
+	@Autowired
+	private AccountStore accountStore;
 	
 	@Override
 	protected void registerAuthentication(AuthenticationManagerBuilder auth) throws Exception {
-        auth.userDetailsService( new AppEngineUserDetailsManager() );
+        auth.userDetailsService( userDetailsManager() );
 	}
 	
 	@Override
 	public void configure(WebSecurity web) throws Exception {
+		// task queue requests carry no session or CSRF token; web.xml restricts /tasks/* to admins, which lets only the queue in
 		web
 			.ignoring()
-				.antMatchers("/resources/**");
+				.antMatchers("/resources/**", "/tasks/**");
 	}
 	
 	@Override
@@ -68,7 +83,7 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter{
 			.and()
 				.logout()
 					.logoutUrl("/signout")
-					.deleteCookies("JSESSIONID")
+					.deleteCookies("JSESSIONID", CookieSecurityContextRepository.DEFAULT_COOKIE_NAME)
 			.and()
 				.authorizeRequests()
 					.antMatchers("/_ah/**", "/admin/**", "/favicon.ico", "/resources/**", "/auth/**", "/signin/**", "/signup/**", "/disconnect/facebook").permitAll()
@@ -78,11 +93,31 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter{
 			.and()
 				.apply(new SpringSocialConfigurer())
 				.and().setSharedObject(ApplicationContext.class, context);
+
+		String tokenKey = environment.getProperty("security.tokenKey");
+		if (tokenKey != null) {
+			// signed cookies carry the authentication and CSRF token, so only the connect flows still use a session
+			int timeToLive = environment.getProperty("security.tokenSeconds", Integer.class, 28800);
+			CookieSecurityContextRepository securityContextRepository = new CookieSecurityContextRepository(new AuthenticationTokenSigner(tokenKey), timeToLive);
+			securityContextRepository.setMaxLifetimeSeconds(environment.getProperty("security.tokenMaxSeconds", Integer.class, 604800));
+			http
+				.securityContext()
+					.securityContextRepository(securityContextRepository)
+				.and()
+					.csrf()
+						.csrfTokenRepository(new CookieCsrfTokenRepository());
+		}
 	}
 	
 	@Bean
 	public SocialUserDetailsService socialUsersDetailService() {
-		return new SimpleSocialUsersDetailService(userDetailsService());
+		return new SimpleSocialUsersDetailService(userDetailsManager());
+	}
+
+	@Bean
+	public CachingUserDetailsManager userDetailsManager() {
+		// a minute in process, in front of the account store's own cache; writes evict only this instance's own entries
+		return new CachingUserDetailsManager(new AppEngineUserDetailsManager(accountStore, passwordEncoder()), new LocalCache(1000, 60000));
 	}
 	
 	@Bean
@@ -97,7 +132,10 @@ public class SecurityConfig extends WebSecurityConfigurerAdapter{
 
 	@Bean
 	public TextEncryptor textEncryptor() {
-		return Encryptors.noOpText();
+		String password = environment.getProperty("security.encryptPassword");
+		String salt = environment.getProperty("security.encryptSalt");
+		// tokens stay in clear text unless a key is configured; those stored before cannot be read once it is
+		return password != null && salt != null ? new AesTextEncryptor(password, salt) : Encryptors.noOpText();
 	}
 
 }
@@ -16,6 +16,7 @@
 package org.springframework.social.showcase.config;
 
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Scope;
@@ -23,6 +24,7 @@ import org.springframework.context.annotation.ScopedProxyMode;
 import org.springframework.core.env.Environment;
 import org.springframework.security.crypto.encrypt.TextEncryptor;
 import org.springframework.social.UserIdSource;
+import org.springframework.social.cache.MemcacheCache;
 import org.springframework.social.config.annotation.ConnectionFactoryConfigurer;
 import org.springframework.social.config.annotation.EnableSocial;
 import org.springframework.social.config.annotation.SocialConfigurer;
@@ -31,6 +33,8 @@ import org.springframework.social.connect.ConnectionFactoryLocator;
 import org.springframework.social.connect.ConnectionRepository;
 import org.springframework.social.connect.UsersConnectionRepository;
 import org.springframework.social.connect.appengine.AppEngineUsersConnectionRepository;
+import org.springframework.social.connect.appengine.AsyncConnectionRepository;
+import org.springframework.social.connect.appengine.MemcacheConnectionCache;
 import org.springframework.social.connect.web.ConnectController;
 import org.springframework.social.facebook.api.Facebook;
 import org.springframework.social.facebook.connect.FacebookConnectionFactory;
@@ -39,6 +43,10 @@ import org.springframework.social.linkedin.api.LinkedIn;
 import org.springframework.social.linkedin.connect.LinkedInConnectionFactory;
 import org.springframework.social.security.AuthenticationNameUserIdSource;
 import org.springframework.social.showcase.facebook.PostToWallAfterConnectInterceptor;
+import org.springframework.social.showcase.friends.FriendGraphService;
+import org.springframework.social.showcase.publish.StatusOutbox;
+import org.springframework.social.showcase.publish.StatusPublisher;
+import org.springframework.social.showcase.signin.ConnectionIndexBackfillController;
 import org.springframework.social.showcase.twitter.TweetAfterConnectInterceptor;
 import org.springframework.social.twitter.api.Twitter;
 import org.springframework.social.twitter.connect.TwitterConnectionFactory;
@@ -58,7 +66,7 @@ public class SocialConfig implements SocialConfigurer {
     @Inject
     private TextEncryptor textEncryptor;
 
-    private UsersConnectionRepository usersConnectionRepository;
+    private AppEngineUsersConnectionRepository usersConnectionRepository;
     private UserIdSource userIdSource;
 
     @Override
@@ -70,8 +78,23 @@ public class SocialConfig implements SocialConfigurer {
 
     @Override
     public UsersConnectionRepository getUsersConnectionRepository(ConnectionFactoryLocator connectionFactoryLocator) {
+        return getAppEngineUsersConnectionRepository(connectionFactoryLocator);
+    }
+
+    private AppEngineUsersConnectionRepository getAppEngineUsersConnectionRepository(ConnectionFactoryLocator connectionFactoryLocator) {
         if ( usersConnectionRepository == null ) {
-            usersConnectionRepository = new AppEngineUsersConnectionRepository(connectionFactoryLocator, textEncryptor, DatastoreServiceFactory.getDatastoreService());
+            AppEngineUsersConnectionRepository repository = new AppEngineUsersConnectionRepository(connectionFactoryLocator, textEncryptor,
+                    DatastoreServiceFactory.getDatastoreService(), DatastoreServiceFactory.getAsyncDatastoreService());
+            // the ConnectionRepository bean is request scoped, so each request loads the user's connections once
+            repository.setCachingEnabled(true);
+            repository.setConnectionCache(new MemcacheConnectionCache(MemcacheServiceFactory.getMemcacheService("connections"), 3600));
+            // a memcache miss then costs one get of the User entity rather than an ancestor query
+            repository.setDenormalizeConnections(true);
+            // sign-in resolves the local user with a get of the reverse index entry instead of a global query,
+            // once ConnectionIndexBackfillController has indexed the connections made before the index existed
+            repository.setConnectionIndexEnabled(true);
+            repository.setConnectionIndexCache(new MemcacheConnectionCache(MemcacheServiceFactory.getMemcacheService("connectionIndex"), 600));
+            usersConnectionRepository = repository;
         }
         return usersConnectionRepository;
     }
@@ -87,16 +110,47 @@ public class SocialConfig implements SocialConfigurer {
     @Bean
     public ConnectController connectController(ConnectionFactoryLocator connectionFactoryLocator, ConnectionRepository connectionRepository) {
         ConnectController connectController = new ConnectController(connectionFactoryLocator, connectionRepository);
-        connectController.addInterceptor(new PostToWallAfterConnectInterceptor());
-        connectController.addInterceptor(new TweetAfterConnectInterceptor());
+        connectController.addInterceptor(new PostToWallAfterConnectInterceptor(statusPublisher()));
+        connectController.addInterceptor(new TweetAfterConnectInterceptor(statusPublisher()));
         return connectController;
     }
 
+    @Bean
+    public ConnectionIndexBackfillController connectionIndexBackfillController(ConnectionFactoryLocator connectionFactoryLocator) {
+        return new ConnectionIndexBackfillController(getAppEngineUsersConnectionRepository(connectionFactoryLocator));
+    }
+
+    @Bean
+    public StatusPublisher statusPublisher() {
+        return new StatusPublisher();
+    }
+
     @Bean
     public DisconnectController disconnectController(UsersConnectionRepository usersConnectionRepository, Environment environment) {
         return new DisconnectController(usersConnectionRepository, environment.getProperty("facebook.clientSecret"));
     }
 
+    @Bean
+    @Scope(value="request", proxyMode=ScopedProxyMode.INTERFACES)
+    public AsyncConnectionRepository asyncConnectionRepository(ConnectionFactoryLocator connectionFactoryLocator) {
+        return getAppEngineUsersConnectionRepository(connectionFactoryLocator).createAsyncConnectionRepository(getUserIdSource().getUserId());
+    }
+
+    @Bean
+    public FriendGraphService friendGraphService(ConnectionFactoryLocator connectionFactoryLocator) {
+        AppEngineUsersConnectionRepository repository = getAppEngineUsersConnectionRepository(connectionFactoryLocator);
+        // friend lists are served from memcache for 15 minutes before the providers are asked again
+        FriendGraphService friendGraphService = new FriendGraphService(repository,
+                new MemcacheCache(MemcacheServiceFactory.getMemcacheService("friends"), 900));
+        repository.setInterceptors(friendGraphService.getEvictingInterceptors());
+        return friendGraphService;
+    }
+
+    @Bean
+    public StatusOutbox statusOutbox(ConnectionFactoryLocator connectionFactoryLocator) {
+        return new StatusOutbox(DatastoreServiceFactory.getDatastoreService(), getUsersConnectionRepository(connectionFactoryLocator));
+    }
+
     @Bean
     @Scope(value="request", proxyMode=ScopedProxyMode.INTERFACES)
     public Facebook facebook(ConnectionRepository repository) {
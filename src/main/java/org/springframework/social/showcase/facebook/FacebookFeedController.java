@@ -15,9 +15,13 @@
  */
 package org.springframework.social.showcase.facebook;
 
+import java.security.Principal;
+
 import javax.inject.Inject;
 
 import org.springframework.social.facebook.api.Facebook;
+import org.springframework.social.showcase.publish.OutboxItem;
+import org.springframework.social.showcase.publish.StatusOutbox;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -28,20 +32,24 @@ public class FacebookFeedController {
 
 	private final Facebook facebook;
 
+	private final StatusOutbox statusOutbox;
+
 	@Inject
-	public FacebookFeedController(Facebook facebook) {
+	public FacebookFeedController(Facebook facebook, StatusOutbox statusOutbox) {
 		this.facebook = facebook;
+		this.statusOutbox = statusOutbox;
 	}
 
 	@RequestMapping(value="/facebook/feed", method=RequestMethod.GET)
-	public String showFeed(Model model) {
+	public String showFeed(Principal currentUser, Model model) {
 		model.addAttribute("feed", facebook.feedOperations().getFeed());
+		model.addAttribute("pending", statusOutbox.findPending(currentUser.getName(), "facebook", OutboxItem.Type.STATUS));
 		return "facebook/feed";
 	}
 	
 	@RequestMapping(value="/facebook/feed", method=RequestMethod.POST)
-	public String postUpdate(String message) {
-		facebook.feedOperations().updateStatus(message);
+	public String postUpdate(Principal currentUser, String message) {
+		statusOutbox.addStatus(currentUser.getName(), "facebook", message);
 		return "redirect:/facebook/feed";
 	}
 	
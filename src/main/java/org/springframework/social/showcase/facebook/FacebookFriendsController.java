@@ -15,9 +15,12 @@
  */
 package org.springframework.social.showcase.facebook;
 
+import java.security.Principal;
+
 import javax.inject.Inject;
 
 import org.springframework.social.facebook.api.Facebook;
+import org.springframework.social.showcase.friends.FriendGraphService;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -28,14 +31,17 @@ public class FacebookFriendsController {
 
 	private final Facebook facebook;
 
+	private final FriendGraphService friendGraphService;
+
 	@Inject
-	public FacebookFriendsController(Facebook facebook) {
+	public FacebookFriendsController(Facebook facebook, FriendGraphService friendGraphService) {
 		this.facebook = facebook;
+		this.friendGraphService = friendGraphService;
 	}
 
 	@RequestMapping(value="/facebook/friends", method=RequestMethod.GET)
-	public String showFeed(Model model) {
-		model.addAttribute("friends", facebook.friendOperations().getFriendProfiles());
+	public String showFeed(Principal currentUser, Model model) {
+		model.addAttribute("friends", friendGraphService.getFacebookFriends(currentUser.getName(), facebook));
 		return "facebook/friends";
 	}
 	
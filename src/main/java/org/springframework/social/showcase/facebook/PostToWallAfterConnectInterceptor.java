@@ -15,17 +15,25 @@
  */
 package org.springframework.social.showcase.facebook;
 
-import org.springframework.social.ApiException;
+import java.security.Principal;
+
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionFactory;
 import org.springframework.social.connect.web.ConnectInterceptor;
 import org.springframework.social.facebook.api.Facebook;
+import org.springframework.social.showcase.publish.StatusPublisher;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
 import org.springframework.web.context.request.WebRequest;
 
 public class PostToWallAfterConnectInterceptor implements ConnectInterceptor<Facebook> {
 
+	private final StatusPublisher statusPublisher;
+
+	public PostToWallAfterConnectInterceptor(StatusPublisher statusPublisher) {
+		this.statusPublisher = statusPublisher;
+	}
+
 	public void preConnect(ConnectionFactory<Facebook> connectionFactory, MultiValueMap<String, String> parameters, WebRequest request) {
 		if (StringUtils.hasText(request.getParameter(POST_TO_WALL_PARAMETER))) {
 			request.setAttribute(POST_TO_WALL_ATTRIBUTE, Boolean.TRUE, WebRequest.SCOPE_SESSION);
@@ -34,10 +42,10 @@ public class PostToWallAfterConnectInterceptor implements ConnectInterceptor<Fac
 
 	public void postConnect(Connection<Facebook> connection, WebRequest request) {
 		if (request.getAttribute(POST_TO_WALL_ATTRIBUTE, WebRequest.SCOPE_SESSION) != null) {
-			try {
-				connection.updateStatus("I've connected with the Spring Social Showcase!");
-			} catch (ApiException e) {
-				// Do nothing: No need to break down if the post-connect post can't be made.
+			// null if the request lost its security context, e.g. to an expired session
+			Principal user = request.getUserPrincipal();
+			if (user != null) {
+				statusPublisher.publish(user.getName(), connection, "I've connected with the Spring Social Showcase!");
 			}
 			request.removeAttribute(POST_TO_WALL_ATTRIBUTE, WebRequest.SCOPE_SESSION);
 		}
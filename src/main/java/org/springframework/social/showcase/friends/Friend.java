@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.friends;
+
+import java.io.Serializable;
+
+/**
+ * A friend or follower of the current user on a provider, marked with whether they use the showcase too.
+ */
+public final class Friend implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String id;
+
+	private final String name;
+
+	private final String imageUrl;
+
+	private final boolean localUser;
+
+	public Friend(String id, String name, String imageUrl, boolean localUser) {
+		this.id = id;
+		this.name = name;
+		this.imageUrl = imageUrl;
+		this.localUser = localUser;
+	}
+
+	/** The provider user id of the friend. */
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public String getImageUrl() {
+		return imageUrl;
+	}
+
+	/** Whether the friend has connected their provider account to a local user. */
+	public boolean isLocalUser() {
+		return localUser;
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.friends;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.springframework.social.cache.ValueCache;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.appengine.AppEngineUsersConnectionRepository;
+import org.springframework.social.connect.intercept.ConnectionInterceptor;
+import org.springframework.social.connect.intercept.ConnectionInterceptorAdapter;
+import org.springframework.social.facebook.api.Facebook;
+import org.springframework.social.facebook.api.FacebookProfile;
+import org.springframework.social.facebook.api.PagedList;
+import org.springframework.social.facebook.api.PagingParameters;
+import org.springframework.social.twitter.api.CursoredList;
+import org.springframework.social.twitter.api.Twitter;
+import org.springframework.social.twitter.api.TwitterProfile;
+import org.springframework.util.MultiValueMap;
+
+/**
+ * Lists the friends of a user on a provider, marking those who are local users too.
+ * Friends are fetched from the provider a page at a time, and each page is matched against local users with one
+ * batched reverse lookup. The joined list is cached per user, so that page views within the cache's time to live
+ * make no calls to the provider at all.
+ */
+public class FriendGraphService {
+
+	private final AppEngineUsersConnectionRepository usersConnectionRepository;
+
+	private final ValueCache friendsCache;
+
+	private int pageSize = 100;
+
+	private int maxPages = 5;
+
+	/**
+	 * @param usersConnectionRepository resolves provider user ids to local users
+	 * @param friendsCache holds the joined friend lists, e.g. a {@code MemcacheCache}, whose expiration sets how stale they may get
+	 */
+	public FriendGraphService(AppEngineUsersConnectionRepository usersConnectionRepository, ValueCache friendsCache) {
+		this.usersConnectionRepository = usersConnectionRepository;
+		this.friendsCache = friendsCache;
+	}
+
+	/**
+	 * Sets the number of Facebook friends requested per call. Defaults to 100.
+	 */
+	public void setPageSize(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Sets the most pages fetched from a provider for a single list, which bounds the calls made against its rate limits. Defaults to 5.
+	 */
+	public void setMaxPages(int maxPages) {
+		this.maxPages = maxPages;
+	}
+
+	public List<Friend> getFacebookFriends(String userId, Facebook facebook) {
+		String cacheKey = getCacheKey("facebook", "friends", userId);
+		List<Friend> friends = getCachedFriends(cacheKey);
+		if (friends == null) {
+			friends = new ArrayList<Friend>();
+			PagingParameters pagingParameters = new PagingParameters(pageSize, 0, null, null);
+			for (int page = 0; page < maxPages && pagingParameters != null; page++) {
+				PagedList<FacebookProfile> profiles = facebook.friendOperations().getFriendProfiles(pagingParameters);
+				Map<String, FacebookProfile> profilesById = new LinkedHashMap<String, FacebookProfile>();
+				for (FacebookProfile profile : profiles) {
+					profilesById.put(profile.getId(), profile);
+				}
+				MultiValueMap<String, String> localUserIds = findLocalUserIds("facebook", profilesById.keySet());
+				for (Entry<String, FacebookProfile> entry : profilesById.entrySet()) {
+					String id = entry.getKey();
+					friends.add(new Friend(id, entry.getValue().getName(), "http://graph.facebook.com/" + id + "/picture",
+							localUserIds.containsKey(id)));
+				}
+				pagingParameters = profiles.size() < pageSize ? null : profiles.getNextPage();
+			}
+			friendsCache.put(cacheKey, friends);
+		}
+		return friends;
+	}
+
+	public List<Friend> getTwitterFriends(String userId, Twitter twitter) {
+		return getTwitterProfiles(userId, twitter, "friends");
+	}
+
+	public List<Friend> getTwitterFollowers(String userId, Twitter twitter) {
+		return getTwitterProfiles(userId, twitter, "followers");
+	}
+
+	/** Drops the cached friend lists of the given user, e.g. once they connect to or disconnect from a provider. */
+	public void evict(String userId) {
+		friendsCache.remove(getCacheKey("facebook", "friends", userId));
+		friendsCache.remove(getCacheKey("twitter", "friends", userId));
+		friendsCache.remove(getCacheKey("twitter", "followers", userId));
+	}
+
+	/**
+	 * Returns the interceptors to register with the connection repository, which {@link #evict(String) evict} the
+	 * friend lists of a user who connects or disconnects a Facebook or Twitter account, so that lists of a previous
+	 * account are not shown for the new one.
+	 */
+	public List<ConnectionInterceptor<?>> getEvictingInterceptors() {
+		List<ConnectionInterceptor<?>> interceptors = new ArrayList<ConnectionInterceptor<?>>();
+		interceptors.add(new EvictingInterceptor<Facebook>() {});
+		interceptors.add(new EvictingInterceptor<Twitter>() {});
+		return interceptors;
+	}
+
+	private List<Friend> getTwitterProfiles(String userId, Twitter twitter, String list) {
+		String cacheKey = getCacheKey("twitter", list, userId);
+		List<Friend> friends = getCachedFriends(cacheKey);
+		if (friends == null) {
+			friends = new ArrayList<Friend>();
+			long cursor = -1;
+			for (int page = 0; page < maxPages && cursor != 0; page++) {
+				CursoredList<TwitterProfile> profiles = list.equals("followers")
+						? twitter.friendOperations().getFollowersInCursor(cursor)
+						: twitter.friendOperations().getFriendsInCursor(cursor);
+				Map<String, TwitterProfile> profilesById = new LinkedHashMap<String, TwitterProfile>();
+				for (TwitterProfile profile : profiles) {
+					profilesById.put(String.valueOf(profile.getId()), profile);
+				}
+				MultiValueMap<String, String> localUserIds = findLocalUserIds("twitter", profilesById.keySet());
+				for (Entry<String, TwitterProfile> entry : profilesById.entrySet()) {
+					TwitterProfile profile = entry.getValue();
+					friends.add(new Friend(entry.getKey(), profile.getScreenName(), profile.getProfileImageUrl(),
+							localUserIds.containsKey(entry.getKey())));
+				}
+				cursor = profiles.getNextCursor();
+			}
+			friendsCache.put(cacheKey, friends);
+		}
+		return friends;
+	}
+
+	private MultiValueMap<String, String> findLocalUserIds(String providerId, Set<String> providerUserIds) {
+		return usersConnectionRepository.findUserIdsByProviderUserId(providerId, providerUserIds);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Friend> getCachedFriends(String cacheKey) {
+		return (List<Friend>) friendsCache.get(cacheKey);
+	}
+
+	// subclassed for each API type, which binds the type the interceptor is registered for
+	private abstract class EvictingInterceptor<S> extends ConnectionInterceptorAdapter<S> {
+
+		@Override
+		public void afterCreate(String userId, Connection<S> connection) {
+			evict(userId);
+		}
+
+		@Override
+		public void afterRemove(String userId, Collection<? extends Connection<S>> connections) {
+			evict(userId);
+		}
+
+	}
+
+	private static String getCacheKey(String providerId, String list, String userId) {
+		return providerId + ":" + list + ":" + userId;
+	}
+
+}
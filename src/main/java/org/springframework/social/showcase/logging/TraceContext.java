@@ -0,0 +1,42 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.logging;
+
+/**
+ * Holds the trace id of the request the current thread serves, set by {@link TraceIdFilter}.
+ * {@link TraceLogger} tags every record with it, so that the records of one request can be told apart in the logs.
+ */
+public final class TraceContext {
+
+	private static final ThreadLocal<String> traceId = new ThreadLocal<String>();
+
+	private TraceContext() {
+	}
+
+	/** Returns the trace id of the current request, or null outside of one. */
+	public static String getTraceId() {
+		return traceId.get();
+	}
+
+	static void setTraceId(String id) {
+		traceId.set(id);
+	}
+
+	static void clear() {
+		traceId.remove();
+	}
+
+}
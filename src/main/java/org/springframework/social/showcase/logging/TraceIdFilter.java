@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.logging;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Gives each request a trace id for {@link TraceLogger}, for as long as the request is served.
+ * The id is taken from the trace context header App Engine adds to requests, or made up when there is none.
+ */
+public class TraceIdFilter extends OncePerRequestFilter {
+
+	private static final String TRACE_HEADER = "X-Cloud-Trace-Context";
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		TraceContext.setTraceId(getTraceId(request));
+		try {
+			filterChain.doFilter(request, response);
+		} finally {
+			TraceContext.clear();
+		}
+	}
+
+	private static String getTraceId(HttpServletRequest request) {
+		String header = request.getHeader(TRACE_HEADER);
+		if (StringUtils.hasText(header)) {
+			// the header reads "TRACE_ID/SPAN_ID;o=OPTIONS"
+			int end = header.indexOf('/');
+			return end > 0 ? header.substring(0, end) : header;
+		}
+		return Long.toHexString(ThreadLocalRandom.current().nextLong());
+	}
+
+}
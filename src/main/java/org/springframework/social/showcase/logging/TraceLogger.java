@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.logging;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Thin layer over a {@code java.util.logging} {@link Logger} for code on the request path, such as the persistence layer.
+ * <ul>
+ * <li>Messages are {@link java.text.MessageFormat} patterns whose arguments are formatted only once a record is published.
+ * Nothing is built for a level that is off, so call sites need no guard unless computing an argument costs something;
+ * {@link #isDebugEnabled()} is the guard then.</li>
+ * <li>Debug records can be sampled: only one call in every {@code sampleRate} is recorded, for paths too hot to trace in full.</li>
+ * <li>Every record is tagged with the trace id of the request, see {@link TraceIdFilter}.</li>
+ * </ul>
+ * Debug maps to {@link Level#FINE}, which the production logging configuration leaves off.
+ */
+public final class TraceLogger {
+
+	private final Logger logger;
+
+	private final int sampleRate;
+
+	private final AtomicLong debugCalls = new AtomicLong();
+
+	private TraceLogger(Logger logger, int sampleRate) {
+		this.logger = logger;
+		this.sampleRate = sampleRate;
+	}
+
+	public static TraceLogger getLogger(Class<?> type) {
+		return getLogger(type, 1);
+	}
+
+	/**
+	 * @param type the class logging, which names the logger
+	 * @param sampleRate record one debug call in this many
+	 */
+	public static TraceLogger getLogger(Class<?> type, int sampleRate) {
+		return new TraceLogger(Logger.getLogger(type.getName()), sampleRate);
+	}
+
+	public boolean isDebugEnabled() {
+		return logger.isLoggable(Level.FINE);
+	}
+
+	public void debug(String pattern, Object arg) {
+		if (isDebugEnabled() && isSampled()) {
+			log(Level.FINE, pattern, null, arg);
+		}
+	}
+
+	public void debug(String pattern, Object arg1, Object arg2) {
+		if (isDebugEnabled() && isSampled()) {
+			log(Level.FINE, pattern, null, arg1, arg2);
+		}
+	}
+
+	public void info(String pattern, Object... args) {
+		if (logger.isLoggable(Level.INFO)) {
+			log(Level.INFO, pattern, null, args);
+		}
+	}
+
+	public void warn(String pattern, Throwable thrown, Object... args) {
+		if (logger.isLoggable(Level.WARNING)) {
+			log(Level.WARNING, pattern, thrown, args);
+		}
+	}
+
+	private boolean isSampled() {
+		return sampleRate <= 1 || debugCalls.incrementAndGet() % sampleRate == 0;
+	}
+
+	private void log(Level level, String pattern, Throwable thrown, Object... args) {
+		String traceId = TraceContext.getTraceId();
+		LogRecord record = new LogRecord(level, traceId != null ? "[" + traceId + "] " + pattern : pattern);
+		record.setParameters(args);
+		record.setThrown(thrown);
+		record.setLoggerName(logger.getName());
+		// set explicitly, or the record would name this class as its source
+		record.setSourceClassName(logger.getName());
+		record.setSourceMethodName(null);
+		logger.log(record);
+	}
+
+}
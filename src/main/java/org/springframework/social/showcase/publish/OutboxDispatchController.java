@@ -0,0 +1,54 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.publish;
+
+import javax.inject.Inject;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Runs the dispatch tasks enqueued by {@link StatusOutbox}.
+ */
+@Controller
+public class OutboxDispatchController {
+
+	private final StatusOutbox statusOutbox;
+
+	@Inject
+	public OutboxDispatchController(StatusOutbox statusOutbox) {
+		this.statusOutbox = statusOutbox;
+	}
+
+	@RequestMapping(value=StatusOutbox.DISPATCH_URL, method=RequestMethod.POST)
+	public ResponseEntity<Void> dispatch(@RequestHeader(value="X-AppEngine-QueueName", required=false) String queueName,
+			@RequestParam(StatusPublisher.USER_ID_PARAMETER) String userId,
+			@RequestParam(StatusPublisher.PROVIDER_ID_PARAMETER) String providerId) {
+		// App Engine strips this header from requests that do not come from the task queue
+		if (queueName == null) {
+			return new ResponseEntity<Void>(HttpStatus.FORBIDDEN);
+		}
+		// an error status has the queue run the task again, with backoff, once the posts held elsewhere may be free
+		boolean complete = statusOutbox.dispatch(userId, providerId);
+		return new ResponseEntity<Void>(complete ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+}
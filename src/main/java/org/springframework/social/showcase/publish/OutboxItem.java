@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.publish;
+
+import java.util.Date;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+
+/**
+ * A post waiting in a user's {@link StatusOutbox} to be sent to a provider.
+ */
+public class OutboxItem {
+
+	public enum Type { STATUS, DIRECT_MESSAGE }
+
+	static final String KIND = "outboxItem";
+
+	private final Key key;
+
+	private final Type type;
+
+	private final String providerId;
+
+	private final String recipient;
+
+	private final String text;
+
+	private final Date createdTime;
+
+	private int attempts;
+
+	private Date notBefore;
+
+	private Date leasedUntil;
+
+	OutboxItem(Key key, Type type, String providerId, String recipient, String text, Date createdTime, int attempts, Date notBefore, Date leasedUntil) {
+		this.key = key;
+		this.type = type;
+		this.providerId = providerId;
+		this.recipient = recipient;
+		this.text = text;
+		this.createdTime = createdTime;
+		this.attempts = attempts;
+		this.notBefore = notBefore;
+		this.leasedUntil = leasedUntil;
+	}
+
+	static OutboxItem fromEntity(Entity entity) {
+		return new OutboxItem(entity.getKey(),
+			Type.valueOf((String) entity.getProperty("type")),
+			(String) entity.getProperty("providerId"),
+			(String) entity.getProperty("recipient"),
+			((Text) entity.getProperty("text")).getValue(),
+			(Date) entity.getProperty("createdTime"),
+			((Long) entity.getProperty("attempts")).intValue(),
+			(Date) entity.getProperty("notBefore"),
+			(Date) entity.getProperty("leasedUntil"));
+	}
+
+	/** Sets the properties of an entity, none of them indexed since the outbox is only read whole. */
+	void copyTo(Entity entity) {
+		entity.setUnindexedProperty("type", type.name());
+		entity.setUnindexedProperty("providerId", providerId);
+		entity.setUnindexedProperty("recipient", recipient);
+		entity.setUnindexedProperty("text", new Text(text));
+		entity.setUnindexedProperty("createdTime", createdTime);
+		entity.setUnindexedProperty("attempts", (long) attempts);
+		entity.setUnindexedProperty("notBefore", notBefore);
+		entity.setUnindexedProperty("leasedUntil", leasedUntil);
+	}
+
+	Key getKey() {
+		return key;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getProviderId() {
+		return providerId;
+	}
+
+	/** The user a direct message is sent to, null for a status update. */
+	public String getRecipient() {
+		return recipient;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public Date getCreatedTime() {
+		return createdTime;
+	}
+
+	/** The number of failed attempts to send the item so far. */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	/** The time before which the item is not sent, later than its creation when it waits for a retry. */
+	Date getNotBefore() {
+		return notBefore;
+	}
+
+	void setNotBefore(Date notBefore) {
+		this.notBefore = notBefore;
+	}
+
+	/** The time until which a dispatch holds the item while sending it, null if none does. */
+	Date getLeasedUntil() {
+		return leasedUntil;
+	}
+
+	void setLeasedUntil(Date leasedUntil) {
+		this.leasedUntil = leasedUntil;
+	}
+
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.publish;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.social.ApiException;
+import org.springframework.social.DuplicateStatusException;
+import org.springframework.social.RateLimitExceededException;
+import org.springframework.social.ServerException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.social.showcase.logging.TraceLogger;
+import org.springframework.social.twitter.api.Twitter;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Durable queue of the posts a user makes to providers, kept in the datastore and sent in the background.
+ * <p>
+ * Adding a post stores it and, in the same transaction, enqueues a task on the provider's queue (see {@link StatusPublisher}),
+ * so the request that made it returns as soon as the post is safely stored. The task runs {@link #dispatch(String, String)},
+ * which sends the user's due posts to the provider in batches. A post that fails for a reason that may pass, such as a rate
+ * limit or a provider outage, is retried later with exponential backoff and random jitter, so that posts held back together
+ * are not all sent again at the same moment. Posts are removed from the outbox once sent, or dropped once they can never be.
+ * <p>
+ * Each user's outbox is its own entity group, read with strongly consistent ancestor queries. A dispatch leases the posts
+ * it sends, and a lease left behind by a dispatch that died lapses, so that the task's retry sends the post.
+ * <p>
+ * Delivery is at least once. A post is removed only after the provider accepted it, and no transaction spans the call,
+ * so a dispatch that dies in between, or fails to remove the post, leaves it to be sent again once its lease lapses.
+ * Providers that reject a repeated status, as Twitter does with {@link DuplicateStatusException}, have that second
+ * send count as sent; a repeated direct message is delivered twice.
+ */
+public class StatusOutbox {
+
+	static final String DISPATCH_URL = "/tasks/outbox";
+
+	private static final String KIND = "outbox";
+
+	private static final TraceLogger logger = TraceLogger.getLogger(StatusOutbox.class);
+
+	private static final Comparator<OutboxItem> CREATED_ORDER = new Comparator<OutboxItem>() {
+		public int compare(OutboxItem item1, OutboxItem item2) {
+			return item1.getCreatedTime().compareTo(item2.getCreatedTime());
+		}
+	};
+
+	private final DatastoreService datastore;
+
+	private final UsersConnectionRepository usersConnectionRepository;
+
+	private int batchSize = 10;
+
+	private int maxAttempts = 8;
+
+	private long leaseMillis = 120000L;
+
+	private long minBackoffMillis = 30000L;
+
+	private long maxBackoffMillis = 3600000L;
+
+	public StatusOutbox(DatastoreService datastore, UsersConnectionRepository usersConnectionRepository) {
+		this.datastore = datastore;
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	/**
+	 * Sets the most posts sent by a single dispatch, which bounds the calls made to a provider by one task. Defaults to 10.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Sets the number of failed attempts after which a post is dropped. Defaults to 8.
+	 */
+	public void setMaxAttempts(int maxAttempts) {
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Sets the delay before the first retry of a failed post, and the most it may grow to by doubling. Default to 30 seconds and an hour.
+	 */
+	public void setBackoffMillis(long minBackoffMillis, long maxBackoffMillis) {
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	public OutboxItem addStatus(String userId, String providerId, String text) {
+		return add(userId, OutboxItem.Type.STATUS, providerId, null, text);
+	}
+
+	public OutboxItem addDirectMessage(String userId, String providerId, String recipient, String text) {
+		return add(userId, OutboxItem.Type.DIRECT_MESSAGE, providerId, recipient, text);
+	}
+
+	/**
+	 * Returns the posts of a given type from a user to a provider that have not been sent yet, oldest first.
+	 */
+	public List<OutboxItem> findPending(String userId, String providerId, OutboxItem.Type type) {
+		List<OutboxItem> items = new ArrayList<OutboxItem>();
+		for (OutboxItem item : findPending(userId, providerId)) {
+			if (item.getType() == type) {
+				items.add(item);
+			}
+		}
+		return items;
+	}
+
+	/**
+	 * Returns the posts of a user to a provider that have not been sent yet, oldest first.
+	 */
+	public List<OutboxItem> findPending(String userId, String providerId) {
+		// the outbox of a user is small, so it is filtered and sorted here rather than with a composite index
+		Query query = new Query(OutboxItem.KIND).setAncestor(getOutboxKey(userId));
+		List<OutboxItem> items = new ArrayList<OutboxItem>();
+		for (Entity entity : datastore.prepare(query).asIterable(FetchOptions.Builder.withDefaults())) {
+			OutboxItem item = OutboxItem.fromEntity(entity);
+			if (item.getProviderId().equals(providerId)) {
+				items.add(item);
+			}
+		}
+		Collections.sort(items, CREATED_ORDER);
+		return items;
+	}
+
+	/**
+	 * Sends the due posts of a user to a provider, at most a batch of them, oldest first.
+	 * Schedules another dispatch for the rest of the batch; posts to retry have theirs scheduled already.
+	 * A post sent but not removed, e.g. because the dispatch died, is sent again by a later one.
+	 * @return false if some posts are held by another dispatch that may have died, and this one should be tried again later
+	 */
+	public boolean dispatch(String userId, String providerId) {
+		Date now = new Date();
+		List<OutboxItem> due = new ArrayList<OutboxItem>();
+		for (OutboxItem item : findPending(userId, providerId)) {
+			if (!item.getNotBefore().after(now)) {
+				due.add(item);
+			}
+		}
+		if (due.isEmpty()) {
+			return true;
+		}
+		if (due.size() > batchSize) {
+			due = due.subList(0, batchSize);
+			schedule(userId, providerId, 0L);
+		}
+		boolean complete = true;
+		List<Connection<?>> connections = usersConnectionRepository.createConnectionRepository(userId).findConnections(providerId);
+		for (OutboxItem item : due) {
+			Boolean claimed = claim(item);
+			if (claimed == null) {
+				continue;
+			}
+			if (!claimed) {
+				complete = false;
+				continue;
+			}
+			if (connections.isEmpty()) {
+				drop(item, "user is no longer connected to " + providerId, null);
+				continue;
+			}
+			try {
+				send(connections.get(0), item);
+				datastore.delete(item.getKey());
+			} catch (DuplicateStatusException e) {
+				datastore.delete(item.getKey());
+			} catch (RateLimitExceededException e) {
+				retry(userId, item, e);
+				// the rest of the batch would only hit the same limit
+				break;
+			} catch (ServerException e) {
+				retry(userId, item, e);
+			} catch (ApiException e) {
+				drop(item, "rejected by " + providerId, e);
+			}
+		}
+		return complete;
+	}
+
+	private OutboxItem add(String userId, OutboxItem.Type type, String providerId, String recipient, String text) {
+		Date now = new Date();
+		Entity entity = new Entity(OutboxItem.KIND, getOutboxKey(userId));
+		OutboxItem item = new OutboxItem(null, type, providerId, recipient, text, now, 0, now, null);
+		item.copyTo(entity);
+		Transaction txn = datastore.beginTransaction();
+		try {
+			datastore.put(txn, entity);
+			StatusPublisher.getQueue(providerId).add(txn, getDispatchTask(userId, providerId, 0L));
+			txn.commit();
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+		return OutboxItem.fromEntity(entity);
+	}
+
+	/**
+	 * Leases an item to this dispatch, so that an overlapping dispatch of the same outbox does not send it too.
+	 * @return true if leased, false if another dispatch holds it, null if it was sent in the meantime
+	 */
+	private Boolean claim(OutboxItem item) {
+		Transaction txn = datastore.beginTransaction();
+		try {
+			OutboxItem current = OutboxItem.fromEntity(datastore.get(txn, item.getKey()));
+			Date now = new Date();
+			if (current.getLeasedUntil() != null && current.getLeasedUntil().after(now)) {
+				return false;
+			}
+			current.setLeasedUntil(new Date(now.getTime() + leaseMillis));
+			Entity entity = new Entity(item.getKey());
+			current.copyTo(entity);
+			datastore.put(txn, entity);
+			txn.commit();
+			return true;
+		} catch (EntityNotFoundException e) {
+			return null;
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+	}
+
+	private void send(Connection<?> connection, OutboxItem item) {
+		if (item.getType() == OutboxItem.Type.DIRECT_MESSAGE) {
+			((Twitter) connection.getApi()).directMessageOperations().sendDirectMessage(item.getRecipient(), item.getText());
+		} else {
+			connection.updateStatus(item.getText());
+		}
+	}
+
+	private void retry(String userId, OutboxItem item, ApiException cause) {
+		int attempts = item.getAttempts() + 1;
+		if (attempts >= maxAttempts) {
+			drop(item, "failed " + attempts + " times", cause);
+			return;
+		}
+		long delay = getBackoffMillis(attempts);
+		item.setAttempts(attempts);
+		item.setNotBefore(new Date(System.currentTimeMillis() + delay));
+		item.setLeasedUntil(null);
+		Entity entity = new Entity(item.getKey());
+		item.copyTo(entity);
+		Transaction txn = datastore.beginTransaction();
+		try {
+			datastore.put(txn, entity);
+			StatusPublisher.getQueue(item.getProviderId()).add(txn, getDispatchTask(userId, item.getProviderId(), delay));
+			txn.commit();
+		} finally {
+			if (txn.isActive()) {
+				txn.rollback();
+			}
+		}
+		logger.info("Post to {0} failed, retrying in {1} ms: {2}", item.getProviderId(), delay, cause.getMessage());
+	}
+
+	private void drop(OutboxItem item, String reason, ApiException cause) {
+		logger.warn("Dropping post to {0}, {1}", cause, item.getProviderId(), reason);
+		datastore.delete(item.getKey());
+	}
+
+	private void schedule(String userId, String providerId, long delay) {
+		StatusPublisher.getQueue(providerId).add(getDispatchTask(userId, providerId, delay));
+	}
+
+	/** Exponential backoff with equal jitter: half of the delay is fixed, the other half random. */
+	private long getBackoffMillis(int attempts) {
+		long delay = Math.min(maxBackoffMillis, minBackoffMillis << Math.min(attempts - 1, 20));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private static TaskOptions getDispatchTask(String userId, String providerId, long delay) {
+		return TaskOptions.Builder.withUrl(DISPATCH_URL)
+			.param(StatusPublisher.USER_ID_PARAMETER, userId)
+			.param(StatusPublisher.PROVIDER_ID_PARAMETER, providerId)
+			.countdownMillis(delay);
+	}
+
+	private static Key getOutboxKey(String userId) {
+		return KeyFactory.createKey(KIND, userId);
+	}
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.publish;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.inject.Inject;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.social.ApiException;
+import org.springframework.social.DuplicateStatusException;
+import org.springframework.social.RateLimitExceededException;
+import org.springframework.social.ServerException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.NoSuchConnectionException;
+import org.springframework.social.connect.UsersConnectionRepository;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+/**
+ * Runs the tasks enqueued by {@link StatusPublisher}.
+ * A task that fails with an error status is retried by its queue with backoff; provider outages and rate limits
+ * are retried, while updates the provider rejects for good, or whose connection is gone, are dropped.
+ */
+@Controller
+public class StatusPublishController {
+
+	private static final Logger logger = Logger.getLogger(StatusPublishController.class.getName());
+
+	private final UsersConnectionRepository usersConnectionRepository;
+
+	@Inject
+	public StatusPublishController(UsersConnectionRepository usersConnectionRepository) {
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	@RequestMapping(value=StatusPublisher.PUBLISH_URL, method=RequestMethod.POST)
+	public ResponseEntity<Void> publish(@RequestHeader(value="X-AppEngine-QueueName", required=false) String queueName,
+			@RequestParam(StatusPublisher.USER_ID_PARAMETER) String userId,
+			@RequestParam(StatusPublisher.PROVIDER_ID_PARAMETER) String providerId,
+			@RequestParam(StatusPublisher.PROVIDER_USER_ID_PARAMETER) String providerUserId,
+			@RequestParam(StatusPublisher.MESSAGE_PARAMETER) String message) {
+		// App Engine strips this header from requests that do not come from the task queue
+		if (queueName == null) {
+			return new ResponseEntity<Void>(HttpStatus.FORBIDDEN);
+		}
+		ConnectionKey connectionKey = new ConnectionKey(providerId, providerUserId);
+		try {
+			Connection<?> connection = usersConnectionRepository.createConnectionRepository(userId).getConnection(connectionKey);
+			connection.updateStatus(message);
+		} catch (NoSuchConnectionException e) {
+			// disconnected since the update was enqueued
+		} catch (DuplicateStatusException e) {
+			// posted already, by an earlier attempt or by the user
+		} catch (RateLimitExceededException e) {
+			return retry(connectionKey, e);
+		} catch (ServerException e) {
+			return retry(connectionKey, e);
+		} catch (ApiException e) {
+			logger.log(Level.WARNING, "Status update for " + connectionKey + " rejected", e);
+		}
+		return new ResponseEntity<Void>(HttpStatus.OK);
+	}
+
+	private ResponseEntity<Void> retry(ConnectionKey connectionKey, ApiException e) {
+		logger.log(Level.INFO, "Status update for " + connectionKey + " failed, to be retried: " + e.getMessage());
+		return new ResponseEntity<Void>(HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+}
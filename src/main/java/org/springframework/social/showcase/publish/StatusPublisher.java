@@ -0,0 +1,105 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.publish;
+
+import java.nio.charset.Charset;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.util.DigestUtils;
+
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TransientFailureException;
+
+/**
+ * Posts status updates to providers in the background, through App Engine push queues.
+ * Each provider has its own queue, named after the provider id with a {@code -status} suffix, whose rate,
+ * concurrency and retry backoff are set in {@code WEB-INF/queue.xml}. The tasks are run by {@link StatusPublishController}.
+ * <p>
+ * Tasks are named after the provider account, the message and the {@link #setDeduplicationMillis(long) deduplication}
+ * window they are enqueued in, so that the same status enqueued twice for an account within moments, e.g. by a
+ * retried request, is posted once, while the same text posted again later goes through. The task queue remembers
+ * the names of run tasks for some days, so the window cannot rely on names being forgotten.
+ */
+public class StatusPublisher {
+
+	static final String PUBLISH_URL = "/tasks/publish";
+
+	static final String USER_ID_PARAMETER = "userId";
+
+	static final String PROVIDER_ID_PARAMETER = "providerId";
+
+	static final String PROVIDER_USER_ID_PARAMETER = "providerUserId";
+
+	static final String MESSAGE_PARAMETER = "message";
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final Logger logger = Logger.getLogger(StatusPublisher.class.getName());
+
+	private long deduplicationMillis = 10 * 60 * 1000L;
+
+	/**
+	 * Sets how long the same status for the same account is enqueued only once. Defaults to 10 minutes.
+	 * Windows are fixed, so a duplicate enqueued right after a window ends gets through.
+	 */
+	public void setDeduplicationMillis(long deduplicationMillis) {
+		this.deduplicationMillis = deduplicationMillis;
+	}
+
+	/**
+	 * Enqueues a status update to be posted through the given connection of a local user.
+	 * @param userId the local user the connection belongs to
+	 * @param connection the connection to post through
+	 * @param message the status text
+	 * @return false if the same status was already enqueued for the account within the window, or could not be enqueued
+	 */
+	public boolean publish(String userId, Connection<?> connection, String message) {
+		ConnectionKey connectionKey = connection.getKey();
+		TaskOptions task = TaskOptions.Builder.withUrl(PUBLISH_URL)
+			.taskName(getTaskName(connectionKey, message))
+			.param(USER_ID_PARAMETER, userId)
+			.param(PROVIDER_ID_PARAMETER, connectionKey.getProviderId())
+			.param(PROVIDER_USER_ID_PARAMETER, connectionKey.getProviderUserId())
+			.param(MESSAGE_PARAMETER, message);
+		try {
+			getQueue(connectionKey.getProviderId()).add(task);
+			return true;
+		} catch (TaskAlreadyExistsException e) {
+			return false;
+		} catch (TransientFailureException e) {
+			// the post is a courtesy; the request that asked for it goes on without
+			logger.log(Level.WARNING, "Status update for " + connectionKey + " could not be enqueued", e);
+			return false;
+		}
+	}
+
+	static Queue getQueue(String providerId) {
+		return QueueFactory.getQueue(providerId + "-status");
+	}
+
+	private String getTaskName(ConnectionKey connectionKey, String message) {
+		String content = connectionKey.getProviderUserId() + '\n' + message;
+		long window = System.currentTimeMillis() / deduplicationMillis;
+		return connectionKey.getProviderId() + "-" + window + "-" + DigestUtils.md5DigestAsHex(content.getBytes(UTF_8));
+	}
+
+}
@@ -1,13 +1,21 @@
 package org.springframework.social.showcase.security;
 
-import com.google.appengine.api.datastore.*;
+import com.google.appengine.api.datastore.Entity;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.security.core.userdetails.User;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.provisioning.UserDetailsManager;
+import org.springframework.social.showcase.account.AccountStore;
 
 import javax.inject.Inject;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created with IntelliJ IDEA.
@@ -18,71 +26,75 @@ import java.util.Collections;
  */
 public class AppEngineUserDetailsManager implements UserDetailsManager {
 
-    private final DatastoreService db;
+    private final AccountStore accountStore;
+
+    private final PasswordEncoder passwordEncoder;
 
     @Inject
-    public AppEngineUserDetailsManager() {
-        this.db = DatastoreServiceFactory.getDatastoreService();
+    public AppEngineUserDetailsManager(AccountStore accountStore, PasswordEncoder passwordEncoder) {
+        this.accountStore = accountStore;
+        this.passwordEncoder = passwordEncoder;
     }
 
     @Override
     public void createUser(UserDetails userDetails) {
-        Entity e = new Entity( "account", userDetails.getUsername() );
-        e.setProperty( "password", userDetails.getPassword() );
-        e.setProperty( "enabled", userDetails.isEnabled() );
-        db.put( e );
+        if ( !accountStore.createAccount( userDetails.getUsername(), getCredentials( userDetails ) ) ) {
+            throw new IllegalArgumentException( "User " + userDetails.getUsername() + " already exists" );
+        }
     }
 
     @Override
     public void updateUser(UserDetails userDetails) {
-        Entity e = new Entity( "account", userDetails.getUsername() );
-        e.setProperty( "password", userDetails.getPassword() );
-        e.setProperty( "enabled", userDetails.isEnabled() );
-        db.put( e );
+        // only the credentials are set; the profile stored by the account repository is kept
+        if ( !accountStore.updateAccount( userDetails.getUsername(), getCredentials( userDetails ) ) ) {
+            throw new IllegalArgumentException( "User " + userDetails.getUsername() + " does not exist" );
+        }
     }
 
     @Override
     public void deleteUser(String s) {
-        Key k = KeyFactory.createKey("account", s);
-        db.delete( k );
+        accountStore.deleteAccount( s );
     }
 
     @Override
-    public void changePassword(String s, String s2) {
-        Key k = KeyFactory.createKey( "account", s );
-        try {
-            Entity e = db.get( k );
-            e.setProperty( "password", s2 );
-            db.put( e );
+    public void changePassword(String oldPassword, String newPassword) {
+        // like InMemoryUserDetailsManager, the password changed is the current user's
+        Authentication currentUser = SecurityContextHolder.getContext().getAuthentication();
+        if ( currentUser == null ) {
+            throw new AccessDeniedException( "Can't change password as no Authentication object found in context for current user." );
         }
-        catch ( EntityNotFoundException ex ) {
+        String username = currentUser.getName();
+        Entity e = accountStore.findAccount( username );
+        if ( e == null ) {
+            throw new IllegalStateException( "Current user " + username + " doesn't exist in database." );
         }
+        if ( !passwordEncoder.matches( oldPassword, (String)e.getProperty( "password" ) ) ) {
+            throw new BadCredentialsException( "Old password is incorrect" );
+        }
+        accountStore.updateAccount( username, Collections.<String, Object>singletonMap( "password", newPassword ) );
     }
 
     @Override
     public boolean userExists(String s) {
-        Key k = KeyFactory.createKey( "account", s );
-        try {
-            Entity e = db.get( k );
-            return e != null;
-        }
-        catch ( EntityNotFoundException ex ) {
-        }
-        return false;
+        return accountStore.findAccount( s ) != null;
     }
 
     @Override
     public UserDetails loadUserByUsername(String s) throws UsernameNotFoundException {
-        Key k = KeyFactory.createKey( "account", s );
-        try {
-            Entity e = db.get( k );
-            String password = (String)e.getProperty( "password" );
-            Boolean enabled = (Boolean)e.getProperty( "enabled" );
-            User user = new User( s, password, enabled == null ? true : enabled, true, true, true, Collections.EMPTY_LIST );
-            return user;
-        }
-        catch ( EntityNotFoundException ex ) {
+        Entity e = accountStore.findAccount( s );
+        if ( e == null ) {
+            return null;
         }
-        return null;
+        String password = (String)e.getProperty( "password" );
+        Boolean enabled = (Boolean)e.getProperty( "enabled" );
+        User user = new User( s, password, enabled == null ? true : enabled, true, true, true, Collections.EMPTY_LIST );
+        return user;
+    }
+
+    private static Map<String, Object> getCredentials(UserDetails userDetails) {
+        Map<String, Object> properties = new HashMap<String, Object>();
+        properties.put( "password", userDetails.getPassword() );
+        properties.put( "enabled", userDetails.isEnabled() );
+        return properties;
     }
 }
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.crypto.codec.Utf8;
+import org.springframework.util.Assert;
+import org.springframework.util.StringUtils;
+
+/**
+ * Issues and verifies compact, signed authentication tokens, so that a user can be recognized without any server-side state.
+ * <p>
+ * A token reads {@code USER.AUTHENTICATED.EXPIRY.AUTHORITIES.SIGNATURE}: the user id, the time the user signed in and
+ * the expiry, both in seconds since the epoch, the comma separated authorities and an HMAC-SHA256 over all four, the
+ * text fields and the signature being base64url encoded without padding. Nothing in it is secret, only tamper-proof.
+ * <p>
+ * Verification runs on every request, so it checks the expiry and the signature before decoding anything, and does so
+ * with a {@link Mac} and buffers kept per thread; a token that is expired or forged costs no allocation at all.
+ */
+public class AuthenticationTokenSigner {
+
+	private static final String ALGORITHM = "HmacSHA256";
+
+	private static final int SIGNATURE_LENGTH = 32;
+
+	private static final char[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+	private static final int[] BASE64URL_VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < BASE64URL_VALUES.length; i++) {
+			BASE64URL_VALUES[i] = -1;
+		}
+		for (int i = 0; i < BASE64URL.length; i++) {
+			BASE64URL_VALUES[BASE64URL[i]] = i;
+		}
+	}
+
+	private final SecretKeySpec key;
+
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch(newMac());
+		}
+	};
+
+	/**
+	 * @param secret the signing key; anyone who knows it can issue tokens for any user
+	 */
+	public AuthenticationTokenSigner(String secret) {
+		this.key = new SecretKeySpec(Utf8.encode(secret), ALGORITHM);
+		// fails here rather than on the first request if the key cannot be used
+		newMac();
+	}
+
+	/**
+	 * Issues a token for a user.
+	 * @param authenticatedAt the time, in seconds since the epoch, the user signed in, carried over by reissued tokens
+	 * @param expiresAt the time, in seconds since the epoch, after which the token is no longer accepted
+	 */
+	public String sign(String userId, long authenticatedAt, long expiresAt, Collection<? extends GrantedAuthority> authorities) {
+		Assert.hasLength(userId, "userId must not be empty");
+		StringBuilder token = new StringBuilder(128);
+		byte[] user = Utf8.encode(userId);
+		appendBase64(token, user, 0, user.length);
+		token.append('.').append(authenticatedAt).append('.').append(expiresAt).append('.');
+		byte[] joined = Utf8.encode(joinAuthorities(authorities));
+		appendBase64(token, joined, 0, joined.length);
+		Scratch scratch = this.scratch.get();
+		int length = scratch.copy(token, token.length());
+		scratch.sign(length);
+		token.append('.');
+		appendBase64(token, scratch.expected, 0, SIGNATURE_LENGTH);
+		return token.toString();
+	}
+
+	/**
+	 * Verifies a token and decodes it.
+	 * @param now the current time, in seconds since the epoch
+	 * @return the token, or null if it is malformed, forged or expired
+	 */
+	public Token verify(String token, long now) {
+		int userEnd = token.indexOf('.');
+		int authenticatedEnd = userEnd > 0 ? token.indexOf('.', userEnd + 1) : -1;
+		int expiryEnd = authenticatedEnd > 0 ? token.indexOf('.', authenticatedEnd + 1) : -1;
+		int payloadEnd = token.lastIndexOf('.');
+		if (userEnd <= 0 || authenticatedEnd < 0 || expiryEnd < 0 || payloadEnd <= expiryEnd) {
+			return null;
+		}
+		long expiresAt = parseSeconds(token, authenticatedEnd + 1, expiryEnd);
+		if (expiresAt <= now) {
+			return null;
+		}
+		Scratch scratch = this.scratch.get();
+		if (decodeBase64(token, payloadEnd + 1, token.length(), scratch.actual) != SIGNATURE_LENGTH) {
+			return null;
+		}
+		int length = scratch.copy(token, payloadEnd);
+		if (length < 0) {
+			return null;
+		}
+		scratch.sign(length);
+		if (!scratch.signatureMatches()) {
+			return null;
+		}
+		String userId = decodeText(token, 0, userEnd);
+		long authenticatedAt = parseSeconds(token, userEnd + 1, authenticatedEnd);
+		String authorities = decodeText(token, expiryEnd + 1, payloadEnd);
+		return userId != null && authorities != null ? new Token(userId, authenticatedAt, expiresAt, splitAuthorities(authorities)) : null;
+	}
+
+	private Mac newMac() {
+		try {
+			Mac mac = Mac.getInstance(ALGORITHM);
+			mac.init(key);
+			return mac;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is not available", e);
+		} catch (InvalidKeyException e) {
+			throw new IllegalArgumentException("Invalid signing key", e);
+		}
+	}
+
+	/** Parses a decimal number of seconds, returning 0, which is always expired, for anything else. */
+	private static long parseSeconds(String token, int start, int end) {
+		if (end == start || end - start > 18) {
+			return 0L;
+		}
+		long seconds = 0L;
+		for (int i = start; i < end; i++) {
+			char c = token.charAt(i);
+			if (c < '0' || c > '9') {
+				return 0L;
+			}
+			seconds = seconds * 10 + (c - '0');
+		}
+		return seconds;
+	}
+
+	private static String joinAuthorities(Collection<? extends GrantedAuthority> authorities) {
+		StringBuilder joined = new StringBuilder();
+		for (GrantedAuthority authority : authorities) {
+			if (joined.length() > 0) {
+				joined.append(',');
+			}
+			joined.append(authority.getAuthority());
+		}
+		return joined.toString();
+	}
+
+	private static List<GrantedAuthority> splitAuthorities(String joined) {
+		if (joined.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<GrantedAuthority> authorities = new ArrayList<GrantedAuthority>();
+		for (String authority : StringUtils.commaDelimitedListToStringArray(joined)) {
+			authorities.add(new SimpleGrantedAuthority(authority));
+		}
+		return authorities;
+	}
+
+	private static String decodeText(String token, int start, int end) {
+		byte[] bytes = new byte[(end - start) * 3 / 4];
+		int length = decodeBase64(token, start, end, bytes);
+		return length >= 0 ? Utf8.decode(length == bytes.length ? bytes : Arrays.copyOf(bytes, length)) : null;
+	}
+
+	private static void appendBase64(StringBuilder out, byte[] bytes, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		for (; i + 2 < end; i += 3) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+			out.append(BASE64URL[bits >>> 18]).append(BASE64URL[bits >>> 12 & 63]).append(BASE64URL[bits >>> 6 & 63]).append(BASE64URL[bits & 63]);
+		}
+		if (end - i == 1) {
+			int bits = (bytes[i] & 0xff) << 16;
+			out.append(BASE64URL[bits >>> 18]).append(BASE64URL[bits >>> 12 & 63]);
+		} else if (end - i == 2) {
+			int bits = (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8;
+			out.append(BASE64URL[bits >>> 18]).append(BASE64URL[bits >>> 12 & 63]).append(BASE64URL[bits >>> 6 & 63]);
+		}
+	}
+
+	/**
+	 * Decodes unpadded base64url text into the given buffer.
+	 * @return the number of bytes decoded, or -1 if the text is not base64url or does not fit
+	 */
+	private static int decodeBase64(String text, int start, int end, byte[] out) {
+		int length = 0;
+		int bits = 0;
+		int bitCount = 0;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			int value = c < 128 ? BASE64URL_VALUES[c] : -1;
+			if (value < 0) {
+				return -1;
+			}
+			bits = bits << 6 | value;
+			bitCount += 6;
+			if (bitCount >= 8) {
+				bitCount -= 8;
+				if (length == out.length) {
+					return -1;
+				}
+				out[length++] = (byte) (bits >>> bitCount);
+				bits &= (1 << bitCount) - 1;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * A verified token.
+	 */
+	public static final class Token {
+
+		private final String userId;
+
+		private final long authenticatedAt;
+
+		private final long expiresAt;
+
+		private final List<GrantedAuthority> authorities;
+
+		private Token(String userId, long authenticatedAt, long expiresAt, List<GrantedAuthority> authorities) {
+			this.userId = userId;
+			this.authenticatedAt = authenticatedAt;
+			this.expiresAt = expiresAt;
+			this.authorities = authorities;
+		}
+
+		public String getUserId() {
+			return userId;
+		}
+
+		/** Returns the time, in seconds since the epoch, the user signed in. */
+		public long getAuthenticatedAt() {
+			return authenticatedAt;
+		}
+
+		/** Returns the time, in seconds since the epoch, after which the token is no longer accepted. */
+		public long getExpiresAt() {
+			return expiresAt;
+		}
+
+		public List<GrantedAuthority> getAuthorities() {
+			return authorities;
+		}
+	}
+
+	/** The per-thread state of signing: the mac, and buffers for the signed text and the two signatures. */
+	private static final class Scratch {
+
+		private final Mac mac;
+
+		private byte[] payload = new byte[256];
+
+		private final byte[] expected = new byte[SIGNATURE_LENGTH];
+
+		private final byte[] actual = new byte[SIGNATURE_LENGTH];
+
+		private Scratch(Mac mac) {
+			this.mac = mac;
+		}
+
+		/** Copies the first characters of a token, which are all ASCII, to the payload buffer; -1 if any is not. */
+		private int copy(CharSequence token, int length) {
+			if (payload.length < length) {
+				payload = new byte[Math.max(length, payload.length * 2)];
+			}
+			for (int i = 0; i < length; i++) {
+				char c = token.charAt(i);
+				if (c >= 128) {
+					return -1;
+				}
+				payload[i] = (byte) c;
+			}
+			return length;
+		}
+
+		private void sign(int length) {
+			mac.update(payload, 0, length);
+			try {
+				mac.doFinal(expected, 0);
+			} catch (ShortBufferException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		/** Compares the signatures in constant time, so that timing does not tell how much of a forged one is right. */
+		private boolean signatureMatches() {
+			int difference = 0;
+			for (int i = 0; i < SIGNATURE_LENGTH; i++) {
+				difference |= expected[i] ^ actual[i];
+			}
+			return difference == 0;
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.security.provisioning.UserDetailsManager;
+import org.springframework.social.cache.CacheStatistics;
+import org.springframework.social.cache.ValueCache;
+
+/**
+ * {@link UserDetailsManager} decorator that caches the users loaded by its delegate, so that repeated form, remember-me
+ * and social sign-ins of a user skip the datastore.
+ * <p>
+ * Users are looked up in an in-process cache first, e.g. a {@code LocalCache}, then in an optional cache shared
+ * by all instances, e.g. a {@code MemcacheCache}. Every write through this manager evicts the user from both.
+ * Another instance may still answer from its own in-process cache until the entry's time to live runs out, which
+ * therefore bounds how long a changed password or a disabled account goes unnoticed there.
+ * <p>
+ * Callers are handed their own copy of the cached user, since authentication erases the credentials of the user it was given.
+ */
+public class CachingUserDetailsManager implements UserDetailsManager {
+
+	private final UserDetailsManager delegate;
+
+	private final ValueCache localCache;
+
+	private ValueCache sharedCache;
+
+	private final AtomicLong loadCount = new AtomicLong();
+
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	/**
+	 * @param delegate the manager that loads and stores the users
+	 * @param localCache the in-process cache, whose time to live bounds how long it may miss writes made through other instances
+	 */
+	public CachingUserDetailsManager(UserDetailsManager delegate, ValueCache localCache) {
+		this.delegate = delegate;
+		this.localCache = localCache;
+	}
+
+	/**
+	 * Sets a cache shared by all instances, consulted when the in-process cache misses. None by default.
+	 */
+	public void setSharedCache(ValueCache sharedCache) {
+		this.sharedCache = sharedCache;
+	}
+
+	@Override
+	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+		UserDetails user = (UserDetails) localCache.get(username);
+		if (user == null && sharedCache != null) {
+			user = (UserDetails) sharedCache.get(username);
+			if (user != null) {
+				localCache.put(username, user);
+			}
+		}
+		if (user == null) {
+			long start = System.nanoTime();
+			UserDetails loaded = delegate.loadUserByUsername(username);
+			loadNanos.addAndGet(System.nanoTime() - start);
+			loadCount.incrementAndGet();
+			if (loaded == null) {
+				return null;
+			}
+			user = copy(loaded);
+			localCache.put(username, user);
+			if (sharedCache != null) {
+				sharedCache.put(username, user);
+			}
+		}
+		return copy(user);
+	}
+
+	@Override
+	public boolean userExists(String username) {
+		return localCache.get(username) != null || delegate.userExists(username);
+	}
+
+	@Override
+	public void createUser(UserDetails user) {
+		try {
+			delegate.createUser(user);
+		} finally {
+			evict(user.getUsername());
+		}
+	}
+
+	@Override
+	public void updateUser(UserDetails user) {
+		try {
+			delegate.updateUser(user);
+		} finally {
+			evict(user.getUsername());
+		}
+	}
+
+	@Override
+	public void deleteUser(String username) {
+		try {
+			delegate.deleteUser(username);
+		} finally {
+			evict(username);
+		}
+	}
+
+	@Override
+	public void changePassword(String oldPassword, String newPassword) {
+		try {
+			delegate.changePassword(oldPassword, newPassword);
+		} finally {
+			Authentication currentUser = SecurityContextHolder.getContext().getAuthentication();
+			if (currentUser != null) {
+				evict(currentUser.getName());
+			}
+		}
+	}
+
+	/**
+	 * Drops a user from the caches, for writes made to the account without going through this manager.
+	 */
+	public void evict(String username) {
+		localCache.remove(username);
+		if (sharedCache != null) {
+			sharedCache.remove(username);
+		}
+	}
+
+	/** Returns the hit, miss and eviction counters of the in-process cache. */
+	public CacheStatistics getLocalCacheStatistics() {
+		return localCache.getStatistics();
+	}
+
+	/** Returns the hit, miss and eviction counters of the shared cache, or null if there is none. */
+	public CacheStatistics getSharedCacheStatistics() {
+		return sharedCache != null ? sharedCache.getStatistics() : null;
+	}
+
+	/** Returns the number of users loaded from the delegate, that is missed by both caches. */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/** Returns the average time taken by the delegate to load a user, or 0 if none was loaded yet. */
+	public double getAverageLoadMillis() {
+		long count = loadCount.get();
+		return count > 0 ? (double) loadNanos.get() / count / TimeUnit.MILLISECONDS.toNanos(1) : 0.0;
+	}
+
+	private static UserDetails copy(UserDetails user) {
+		return new User(user.getUsername(), user.getPassword(), user.isEnabled(), user.isAccountNonExpired(),
+				user.isCredentialsNonExpired(), user.isAccountNonLocked(), user.getAuthorities());
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import java.util.UUID;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.web.csrf.CsrfToken;
+import org.springframework.security.web.csrf.CsrfTokenRepository;
+import org.springframework.security.web.csrf.DefaultCsrfToken;
+
+/**
+ * {@link CsrfTokenRepository} keeping the token in an HttpOnly cookie rather than the HTTP session, for use with
+ * {@link CookieSecurityContextRepository}. Forms still carry the token as the {@code _csrf} parameter, which another
+ * site can neither read from the cookie nor guess.
+ */
+public class CookieCsrfTokenRepository implements CsrfTokenRepository {
+
+	public static final String DEFAULT_COOKIE_NAME = "CSRF_TOKEN";
+
+	private static final String PARAMETER_NAME = "_csrf";
+
+	private static final String HEADER_NAME = "X-CSRF-TOKEN";
+
+	private String cookieName = DEFAULT_COOKIE_NAME;
+
+	public void setCookieName(String cookieName) {
+		this.cookieName = cookieName;
+	}
+
+	@Override
+	public CsrfToken generateToken(HttpServletRequest request) {
+		return new DefaultCsrfToken(HEADER_NAME, PARAMETER_NAME, UUID.randomUUID().toString());
+	}
+
+	@Override
+	public void saveToken(CsrfToken token, HttpServletRequest request, HttpServletResponse response) {
+		if (token == null) {
+			Cookies.delete(request, response, cookieName);
+		} else {
+			Cookies.write(request, response, cookieName, token.getToken(), -1);
+		}
+	}
+
+	@Override
+	public CsrfToken loadToken(HttpServletRequest request) {
+		String token = Cookies.read(request, cookieName);
+		return token != null && !token.isEmpty() ? new DefaultCsrfToken(HEADER_NAME, PARAMETER_NAME, token) : null;
+	}
+
+}
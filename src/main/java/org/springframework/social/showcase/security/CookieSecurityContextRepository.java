@@ -0,0 +1,154 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.security.authentication.AuthenticationTrustResolver;
+import org.springframework.security.authentication.AuthenticationTrustResolverImpl;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+import org.springframework.security.web.context.SaveContextOnUpdateOrErrorResponseWrapper;
+import org.springframework.security.web.context.SecurityContextRepository;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * {@link SecurityContextRepository} keeping the authentication of a user in a signed cookie instead of the HTTP session,
+ * so that authenticated requests need no session to be loaded from, or saved back to, the datastore and memcache.
+ * <p>
+ * The cookie holds a token of {@link AuthenticationTokenSigner}, issued whenever a user signs in, by any means, and
+ * verified at the start of each request by the {@code SecurityContextPersistenceFilter}, ahead of the authentication filters.
+ * A token is issued again once less than half of its time to live is left, so an active user stays signed in, and the
+ * cookie is deleted on sign-out. Reissued tokens keep the time the user signed in, and never outlive the
+ * {@link #setMaxLifetimeSeconds(int) maximum lifetime} from then, after which the user has to sign in again.
+ * <p>
+ * Being stateless, a token cannot be revoked before it expires: a token copied before sign-out, a changed password
+ * or a disabled account are only cut off by its expiry, at the latest the maximum lifetime after signing in.
+ */
+public class CookieSecurityContextRepository implements SecurityContextRepository {
+
+	public static final String DEFAULT_COOKIE_NAME = "AUTH_TOKEN";
+
+	private static final String TOKEN_ATTRIBUTE = CookieSecurityContextRepository.class.getName() + ".TOKEN";
+
+	private final AuthenticationTokenSigner signer;
+
+	private final int timeToLiveSeconds;
+
+	private final AuthenticationTrustResolver trustResolver = new AuthenticationTrustResolverImpl();
+
+	private String cookieName = DEFAULT_COOKIE_NAME;
+
+	private int maxLifetimeSeconds = 7 * 24 * 60 * 60;
+
+	/**
+	 * @param signer signs and verifies the tokens
+	 * @param timeToLiveSeconds how long a token is accepted after it was issued
+	 */
+	public CookieSecurityContextRepository(AuthenticationTokenSigner signer, int timeToLiveSeconds) {
+		this.signer = signer;
+		this.timeToLiveSeconds = timeToLiveSeconds;
+	}
+
+	public void setCookieName(String cookieName) {
+		this.cookieName = cookieName;
+	}
+
+	/**
+	 * Sets how long after signing in a user stays signed in at most, however active. Defaults to 7 days.
+	 * @param maxLifetimeSeconds the absolute lifetime of the tokens issued for one sign-in
+	 */
+	public void setMaxLifetimeSeconds(int maxLifetimeSeconds) {
+		this.maxLifetimeSeconds = maxLifetimeSeconds;
+	}
+
+	@Override
+	public SecurityContext loadContext(HttpRequestResponseHolder requestResponseHolder) {
+		HttpServletRequest request = requestResponseHolder.getRequest();
+		SecurityContext context = SecurityContextHolder.createEmptyContext();
+		AuthenticationTokenSigner.Token token = getToken(request);
+		if (token != null) {
+			request.setAttribute(TOKEN_ATTRIBUTE, token);
+			// the password is not in the token, and nothing downstream needs it
+			User principal = new User(token.getUserId(), "", token.getAuthorities());
+			context.setAuthentication(new UsernamePasswordAuthenticationToken(principal, null, token.getAuthorities()));
+		}
+		requestResponseHolder.setResponse(new SaveToCookieResponseWrapper(request, requestResponseHolder.getResponse()));
+		return context;
+	}
+
+	@Override
+	public void saveContext(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+		SaveToCookieResponseWrapper wrapper = WebUtils.getNativeResponse(response, SaveToCookieResponseWrapper.class);
+		if (wrapper != null && !wrapper.isContextSaved()) {
+			wrapper.saveContext(context);
+		}
+	}
+
+	@Override
+	public boolean containsContext(HttpServletRequest request) {
+		return request.getAttribute(TOKEN_ATTRIBUTE) != null || getToken(request) != null;
+	}
+
+	private AuthenticationTokenSigner.Token getToken(HttpServletRequest request) {
+		String value = Cookies.read(request, cookieName);
+		return value != null ? signer.verify(value, System.currentTimeMillis() / 1000) : null;
+	}
+
+	private void writeToken(SecurityContext context, HttpServletRequest request, HttpServletResponse response) {
+		Authentication authentication = context.getAuthentication();
+		AuthenticationTokenSigner.Token token = (AuthenticationTokenSigner.Token) request.getAttribute(TOKEN_ATTRIBUTE);
+		if (authentication == null || trustResolver.isAnonymous(authentication)) {
+			if (token != null || Cookies.read(request, cookieName) != null) {
+				Cookies.delete(request, response, cookieName);
+			}
+			return;
+		}
+		long now = System.currentTimeMillis() / 1000;
+		long authenticatedAt = now;
+		if (token != null && token.getUserId().equals(authentication.getName())) {
+			authenticatedAt = token.getAuthenticatedAt();
+			// a token capped by the maximum lifetime cannot be extended any further
+			if (token.getExpiresAt() - now > timeToLiveSeconds / 2 || token.getExpiresAt() >= authenticatedAt + maxLifetimeSeconds) {
+				return;
+			}
+		}
+		long expiresAt = Math.min(now + timeToLiveSeconds, authenticatedAt + maxLifetimeSeconds);
+		String value = signer.sign(authentication.getName(), authenticatedAt, expiresAt, authentication.getAuthorities());
+		Cookies.write(request, response, cookieName, value, (int) (expiresAt - now));
+	}
+
+	private final class SaveToCookieResponseWrapper extends SaveContextOnUpdateOrErrorResponseWrapper {
+
+		private final HttpServletRequest request;
+
+		private SaveToCookieResponseWrapper(HttpServletRequest request, HttpServletResponse response) {
+			super(response, true);
+			this.request = request;
+		}
+
+		@Override
+		protected void saveContext(SecurityContext context) {
+			writeToken(context, request, (HttpServletResponse) getResponse());
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.util.StringUtils;
+
+/**
+ * Reads and writes the cookies of the session-free security state.
+ * They are written as headers since the Servlet 2.5 API cannot mark a cookie HttpOnly.
+ */
+final class Cookies {
+
+	private Cookies() {
+	}
+
+	static String read(HttpServletRequest request, String name) {
+		Cookie[] cookies = request.getCookies();
+		if (cookies != null) {
+			for (Cookie cookie : cookies) {
+				if (name.equals(cookie.getName())) {
+					return cookie.getValue();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Sets an HttpOnly cookie for the whole application, secure when the request is.
+	 * @param maxAgeSeconds how long the browser keeps the cookie; 0 deletes it, and a negative age keeps it until the browser closes
+	 */
+	static void write(HttpServletRequest request, HttpServletResponse response, String name, String value, int maxAgeSeconds) {
+		String contextPath = request.getContextPath();
+		StringBuilder header = new StringBuilder(name).append('=').append(value)
+			.append("; Path=").append(StringUtils.hasLength(contextPath) ? contextPath : "/");
+		if (maxAgeSeconds >= 0) {
+			header.append("; Max-Age=").append(maxAgeSeconds);
+		}
+		header.append("; HttpOnly");
+		if (request.isSecure()) {
+			header.append("; Secure");
+		}
+		response.addHeader("Set-Cookie", header.toString());
+	}
+
+	static void delete(HttpServletRequest request, HttpServletResponse response, String name) {
+		write(request, response, name, "", 0);
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.signin;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.social.connect.appengine.AppEngineUsersConnectionRepository;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+/**
+ * Indexes the connections made before the reverse index was enabled, in a chain of tasks on the default queue,
+ * each running one page and enqueuing the next. An admin starts the chain with a GET; once the last page has run,
+ * sign-in looks local users up in the index. A failed page is retried by the queue from the same cursor.
+ */
+@RequestMapping(ConnectionIndexBackfillController.BACKFILL_URL)
+public class ConnectionIndexBackfillController {
+
+	static final String BACKFILL_URL = "/tasks/connectionIndex";
+
+	private static final String CURSOR_PARAMETER = "cursor";
+
+	private static final int PAGE_SIZE = 200;
+
+	private final AppEngineUsersConnectionRepository usersConnectionRepository;
+
+	public ConnectionIndexBackfillController(AppEngineUsersConnectionRepository usersConnectionRepository) {
+		this.usersConnectionRepository = usersConnectionRepository;
+	}
+
+	@RequestMapping(method=RequestMethod.GET)
+	public ResponseEntity<String> start() {
+		QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(BACKFILL_URL));
+		return new ResponseEntity<String>("Connection index backfill started", HttpStatus.ACCEPTED);
+	}
+
+	@RequestMapping(method=RequestMethod.POST)
+	public ResponseEntity<Void> backfill(@RequestHeader(value="X-AppEngine-QueueName", required=false) String queueName,
+			@RequestParam(value=CURSOR_PARAMETER, required=false) String cursor) {
+		// App Engine strips this header from requests that do not come from the task queue
+		if (queueName == null) {
+			return new ResponseEntity<Void>(HttpStatus.FORBIDDEN);
+		}
+		Cursor next = usersConnectionRepository.backfillConnectionIndex(cursor != null ? Cursor.fromWebSafeString(cursor) : null, PAGE_SIZE);
+		if (next != null) {
+			QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(BACKFILL_URL).param(CURSOR_PARAMETER, next.toWebSafeString()));
+		}
+		return new ResponseEntity<Void>(HttpStatus.OK);
+	}
+
+}
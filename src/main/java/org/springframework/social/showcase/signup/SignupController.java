@@ -18,6 +18,7 @@ package org.springframework.social.showcase.signup;
 import javax.inject.Inject;
 import javax.validation.Valid;
 
+import org.springframework.dao.ConcurrencyFailureException;
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.web.ProviderSignInUtils;
 import org.springframework.social.showcase.account.Account;
@@ -78,6 +79,10 @@ public class SignupController {
 		} catch (UsernameAlreadyInUseException e) {
 			formBinding.rejectValue("username", "user.duplicateUsername", "already in use");
 			return null;
+		} catch (ConcurrencyFailureException e) {
+			// a concurrent sign-up took the username between the check and the commit
+			formBinding.rejectValue("username", "user.duplicateUsername", "already in use");
+			return null;
 		}
 	}
 
@@ -15,10 +15,12 @@
  */
 package org.springframework.social.showcase.twitter;
 
-import org.springframework.social.DuplicateStatusException;
+import java.security.Principal;
+
 import org.springframework.social.connect.Connection;
 import org.springframework.social.connect.ConnectionFactory;
 import org.springframework.social.connect.web.ConnectInterceptor;
+import org.springframework.social.showcase.publish.StatusPublisher;
 import org.springframework.social.twitter.api.Twitter;
 import org.springframework.util.MultiValueMap;
 import org.springframework.util.StringUtils;
@@ -26,6 +28,12 @@ import org.springframework.web.context.request.WebRequest;
 
 public class TweetAfterConnectInterceptor implements ConnectInterceptor<Twitter> {
 
+	private final StatusPublisher statusPublisher;
+
+	public TweetAfterConnectInterceptor(StatusPublisher statusPublisher) {
+		this.statusPublisher = statusPublisher;
+	}
+
 	public void preConnect(ConnectionFactory<Twitter> provider, MultiValueMap<String, String> parameters, WebRequest request) {
 		if (StringUtils.hasText(request.getParameter(POST_TWEET_PARAMETER))) {
 			request.setAttribute(POST_TWEET_ATTRIBUTE, Boolean.TRUE, WebRequest.SCOPE_SESSION);
@@ -34,9 +42,10 @@ public class TweetAfterConnectInterceptor implements ConnectInterceptor<Twitter>
 
 	public void postConnect(Connection<Twitter> connection, WebRequest request) {
 		if (request.getAttribute(POST_TWEET_ATTRIBUTE, WebRequest.SCOPE_SESSION) != null) {
-			try {
-				connection.updateStatus("I've connected with the Spring Social Showcase!");
-			} catch (DuplicateStatusException e) {
+			// null if the request lost its security context, e.g. to an expired session
+			Principal user = request.getUserPrincipal();
+			if (user != null) {
+				statusPublisher.publish(user.getName(), connection, "I've connected with the Spring Social Showcase!");
 			}
 			request.removeAttribute(POST_TWEET_ATTRIBUTE, WebRequest.SCOPE_SESSION);
 		}
@@ -15,8 +15,11 @@
  */
 package org.springframework.social.showcase.twitter;
 
+import java.security.Principal;
+
 import javax.inject.Inject;
 
+import org.springframework.social.showcase.friends.FriendGraphService;
 import org.springframework.social.twitter.api.Twitter;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -27,21 +30,24 @@ import org.springframework.web.bind.annotation.RequestMethod;
 public class TwitterFriendsController {
 
 	private final Twitter twitter;
+
+	private final FriendGraphService friendGraphService;
 	
 	@Inject
-	public TwitterFriendsController(Twitter twitter) {
+	public TwitterFriendsController(Twitter twitter, FriendGraphService friendGraphService) {
 		this.twitter = twitter;
+		this.friendGraphService = friendGraphService;
 	}
 	
 	@RequestMapping(value="/twitter/friends", method=RequestMethod.GET)
-	public String friends(Model model) {
-		model.addAttribute("profiles", twitter.friendOperations().getFriends());
+	public String friends(Principal currentUser, Model model) {
+		model.addAttribute("profiles", friendGraphService.getTwitterFriends(currentUser.getName(), twitter));
 		return "twitter/friends";
 	}
 
 	@RequestMapping(value="/twitter/followers", method=RequestMethod.GET)
-	public String followers(Model model) {
-		model.addAttribute("profiles", twitter.friendOperations().getFollowers());
+	public String followers(Principal currentUser, Model model) {
+		model.addAttribute("profiles", friendGraphService.getTwitterFollowers(currentUser.getName(), twitter));
 		return "twitter/friends";
 	}
 
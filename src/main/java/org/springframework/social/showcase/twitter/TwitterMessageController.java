@@ -15,8 +15,11 @@
  */
 package org.springframework.social.showcase.twitter;
 
+import java.security.Principal;
+
 import javax.inject.Inject;
 
+import org.springframework.social.showcase.publish.StatusOutbox;
 import org.springframework.social.twitter.api.Twitter;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -27,10 +30,13 @@ import org.springframework.web.bind.annotation.RequestMethod;
 public class TwitterMessageController {
 
 	private final Twitter twitter;
+
+	private final StatusOutbox statusOutbox;
 	
 	@Inject
-	public TwitterMessageController(Twitter twitter) {
+	public TwitterMessageController(Twitter twitter, StatusOutbox statusOutbox) {
 		this.twitter = twitter;
+		this.statusOutbox = statusOutbox;
 	}
 	
 	@RequestMapping(value="/twitter/messages", method=RequestMethod.GET)
@@ -50,8 +56,8 @@ public class TwitterMessageController {
 	}
 
 	@RequestMapping(value="/twitter/messages", method=RequestMethod.POST)
-	public String sent(MessageForm message) {
-		twitter.directMessageOperations().sendDirectMessage(message.getTo(), message.getText());
+	public String sent(Principal currentUser, MessageForm message) {
+		statusOutbox.addDirectMessage(currentUser.getName(), "twitter", message.getTo(), message.getText());
 		return "redirect:/twitter/messages";
 	}
 	
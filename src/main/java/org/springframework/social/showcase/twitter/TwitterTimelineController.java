@@ -15,8 +15,12 @@
  */
 package org.springframework.social.showcase.twitter;
 
+import java.security.Principal;
+
 import javax.inject.Inject;
 
+import org.springframework.social.showcase.publish.OutboxItem;
+import org.springframework.social.showcase.publish.StatusOutbox;
 import org.springframework.social.twitter.api.Twitter;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
@@ -28,19 +32,22 @@ import org.springframework.web.bind.annotation.RequestMethod;
 public class TwitterTimelineController {
 
 	private final Twitter twitter;
+
+	private final StatusOutbox statusOutbox;
 	
 	@Inject
-	public TwitterTimelineController(Twitter twitter) {
+	public TwitterTimelineController(Twitter twitter, StatusOutbox statusOutbox) {
 		this.twitter = twitter;
+		this.statusOutbox = statusOutbox;
 	}
 	
 	@RequestMapping(value="/twitter/timeline", method=RequestMethod.GET)
-	public String showTimeline(Model model) {
-		return showTimeline("Home", model);
+	public String showTimeline(Principal currentUser, Model model) {
+		return showTimeline("Home", currentUser, model);
 	}
 	
 	@RequestMapping(value="/twitter/timeline/{timelineType}", method=RequestMethod.GET)
-	public String showTimeline(@PathVariable("timelineType") String timelineType, Model model) {
+	public String showTimeline(@PathVariable("timelineType") String timelineType, Principal currentUser, Model model) {
 		if (timelineType.equals("Home")) {
 			model.addAttribute("timeline", twitter.timelineOperations().getHomeTimeline());
 		} else if(timelineType.equals("User")) {
@@ -51,13 +58,14 @@ public class TwitterTimelineController {
 			model.addAttribute("timeline", twitter.timelineOperations().getFavorites());
 		}
 		model.addAttribute("timelineName", timelineType);
+		model.addAttribute("pending", statusOutbox.findPending(currentUser.getName(), "twitter", OutboxItem.Type.STATUS));
 		return "twitter/timeline";
 	}
 	
 
 	@RequestMapping(value="/twitter/tweet", method=RequestMethod.POST)
-	public String postTweet(String message) {
-		twitter.timelineOperations().updateStatus(message);
+	public String postTweet(Principal currentUser, String message) {
+		statusOutbox.addStatus(currentUser.getName(), "twitter", message);
 		return "redirect:/twitter";
 	}
 
@@ -12,6 +12,15 @@
 	<input type="submit" value="Post" />
 </form>
 
+<c:if test="${not empty pending}">
+<p>Waiting to be posted:</p>
+<ul class="pending">
+<c:forEach items="${pending}" var="item">
+	<li><c:out value="${item.text}" /><c:if test="${item.attempts > 0}"> <em>(retrying)</em></c:if></li>
+</c:forEach>
+</ul>
+</c:if>
+
 <div class="feed">
 <ul class="feedList">
 <c:forEach items="${feed}" var="post">
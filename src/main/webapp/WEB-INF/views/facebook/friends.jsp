@@ -7,6 +7,6 @@
 	
 <ul class="friends">
 <c:forEach items="${friends}" var="friend">
-	<li><img src="http://graph.facebook.com/<c:out value="${friend.id}"/>/picture" align="middle"/><c:out value="${friend.name}"/></li>
+	<li><img src="<c:out value="${friend.imageUrl}"/>" align="middle"/><c:out value="${friend.name}"/><c:if test="${friend.localUser}"> <em>(on Spring Social Showcase)</em></c:if></li>
 </c:forEach>
 </ul>
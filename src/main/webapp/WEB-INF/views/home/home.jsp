@@ -1,10 +1,23 @@
 <%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c" %>
 <%@ taglib uri="http://java.sun.com/jsp/jstl/functions" prefix="fn" %>
 <%@ taglib uri="http://www.springframework.org/tags/form" prefix="sf" %>
+<%@ taglib uri="http://www.springframework.org/tags" prefix="s" %>
 <%@ page session="false" %>
 
 <p>Welcome, <c:out value="${account.firstName}"/>!</p>
 
+<c:forEach var="entry" items="${connectionsToProviders}">
+	<c:if test="${not empty entry.value}">
+		<s:message code="${entry.key}.displayName" text="${entry.key}" var="providerDisplayName" />
+		<p>
+		You are connected to ${providerDisplayName} as
+		<c:forEach var="connection" items="${entry.value}" varStatus="status">
+			<a href="<c:out value="${connection.profileUrl}" />"><c:out value="${connection.displayName}" /></a><c:if test="${not status.last}">, </c:if>
+		</c:forEach>.
+		</p>
+	</c:if>
+</c:forEach>
+
 <form method="POST" action="<c:url value="/signout" />">
 	<input type="hidden" name="_csrf" value="<c:out value="${_csrf.token}" />" />
 	<button>Sign Out</button>
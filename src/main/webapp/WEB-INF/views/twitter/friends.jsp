@@ -16,10 +16,10 @@
 <c:forEach items="${profiles}" var="profile">
 	<li class="imagedItem">
 		<div class="image">
-		<c:if test="${not empty profile.profileImageUrl}"><img src="<c:out value="${profile.profileImageUrl}"/>" width="48" height="48" align="left"/></c:if>
+		<c:if test="${not empty profile.imageUrl}"><img src="<c:out value="${profile.imageUrl}"/>" width="48" height="48" align="left"/></c:if>
 		</div>
 		<div class="content">
-		<p><a href="http://twitter.com/<c:out value="${profile.screenName}" />"><c:out value="${profile.screenName}"/></a></p>
+		<p><a href="http://twitter.com/<c:out value="${profile.name}" />"><c:out value="${profile.name}"/></a><c:if test="${profile.localUser}"> <em>(on Spring Social Showcase)</em></c:if></p>
 		</div>
 	</li>
 </c:forEach>
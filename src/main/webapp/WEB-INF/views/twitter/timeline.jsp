@@ -33,6 +33,15 @@
 <li><a href="<c:out value="${timelineBaseUrl}"/>/Favorites">Favorites</a></li>
 </ul>
 
+<c:if test="${not empty pending}">
+<h4>Waiting to be posted</h4>
+<ul class="pending">
+<c:forEach items="${pending}" var="item">
+	<li><c:out value="${item.text}" /> <span class="postTime"><c:out value="${item.createdTime}"/></span><c:if test="${item.attempts > 0}"> <em>(retrying)</em></c:if></li>
+</c:forEach>
+</ul>
+</c:if>
+
 <div class="feed">
 <ul class="imagedList">
 <c:forEach items="${timeline}" var="tweet">
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+
+public class AesTextEncryptorTest {
+
+	private static final String PASSWORD = "password";
+
+	private static final String SALT = "5c0744940b5c369b";
+
+	private final AesTextEncryptor encryptor = new AesTextEncryptor(PASSWORD, SALT);
+
+	private final TextEncryptor springEncryptor = Encryptors.text(PASSWORD, SALT);
+
+	@Test
+	public void roundTrip() {
+		assertEquals("access token", encryptor.decrypt(encryptor.encrypt("access token")));
+		assertEquals("", encryptor.decrypt(encryptor.encrypt("")));
+		assertEquals("\u00e9\u4e2d", encryptor.decrypt(encryptor.encrypt("\u00e9\u4e2d")));
+	}
+
+	@Test
+	public void decryptsTextEncryptedBySpringEncryptor() {
+		assertEquals("access token", encryptor.decrypt(springEncryptor.encrypt("access token")));
+	}
+
+	@Test
+	public void encryptsTextSpringEncryptorDecrypts() {
+		assertEquals("access token", springEncryptor.decrypt(encryptor.encrypt("access token")));
+	}
+
+	@Test
+	public void encryptionIsSalted() {
+		assertFalse(encryptor.encrypt("access token").equals(encryptor.encrypt("access token")));
+	}
+
+	@Test
+	public void decryptAll() {
+		String[] texts = encryptor.decryptAll(encryptor.encrypt("token"), null, springEncryptor.encrypt("secret"));
+		assertEquals(Arrays.asList("token", null, "secret"), Arrays.asList(texts));
+	}
+
+	@Test
+	public void encryptorsOnOtherThreadsAgree() throws InterruptedException {
+		final String encrypted = encryptor.encrypt("access token");
+		final String[] decrypted = new String[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				decrypted[0] = encryptor.decrypt(encrypted);
+			}
+		};
+		thread.start();
+		thread.join();
+		assertEquals("access token", decrypted[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsTooShortText() {
+		encryptor.decrypt("0102");
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.twitter.connect.TwitterConnectionFactory;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class AppEngineConnectionRepositoryTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private final List<Integer> batchGetSizes = new ArrayList<Integer>();
+
+	private AppEngineConnectionRepository repository;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		ConnectionFactoryRegistry registry = new ConnectionFactoryRegistry();
+		registry.addConnectionFactory(new TwitterConnectionFactory("consumerKey", "consumerSecret"));
+		repository = new AppEngineConnectionRepository("alice", registry, Encryptors.noOpText(),
+				recordBatchGets(DatastoreServiceFactory.getDatastoreService()), "");
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void findConnectionsToUsersGetsAtMostAThousandKeysAtATime() {
+		putConnections(1001);
+		MultiValueMap<String, String> providerUserIds = new LinkedMultiValueMap<String, String>();
+		for (int i = 0; i < 2001; i++) {
+			providerUserIds.add("twitter", i % 2 == 0 ? String.valueOf(i / 2) : "missing" + i);
+		}
+		List<Connection<?>> connections = repository.findConnectionsToUsers(providerUserIds).get("twitter");
+		assertEquals(Arrays.asList(1000, 1000, 1), batchGetSizes);
+		assertEquals(2001, connections.size());
+		for (int i = 0; i < connections.size(); i++) {
+			if (i % 2 == 0) {
+				assertEquals(String.valueOf(i / 2), connections.get(i).getKey().getProviderUserId());
+			} else {
+				assertNull(connections.get(i));
+			}
+		}
+	}
+
+	@Test
+	public void getConnectionsGetsAtMostAThousandKeysAtATime() {
+		putConnections(1001);
+		List<ConnectionKey> connectionKeys = new ArrayList<ConnectionKey>();
+		for (int i = 0; i < 1002; i++) {
+			connectionKeys.add(new ConnectionKey("twitter", String.valueOf(i)));
+		}
+		Map<ConnectionKey, Connection<?>> connections = repository.getConnections(connectionKeys);
+		assertEquals(Arrays.asList(1000, 2), batchGetSizes);
+		assertEquals(1001, connections.size());
+		assertEquals(connectionKeys.subList(0, 1001), new ArrayList<ConnectionKey>(connections.keySet()));
+	}
+
+	@Test
+	public void smallLookupsAreOneGet() {
+		putConnections(2);
+		assertEquals(2, repository.getConnections(Arrays.asList(new ConnectionKey("twitter", "0"), new ConnectionKey("twitter", "1"))).size());
+		assertEquals(Arrays.asList(2), batchGetSizes);
+	}
+
+	private void putConnections(int count) {
+		List<Entity> entities = new ArrayList<Entity>();
+		for (int i = 0; i < count; i++) {
+			ConnectionKey connectionKey = new ConnectionKey("twitter", String.valueOf(i));
+			Entity entity = new Entity(repository.createKey(connectionKey));
+			new ConnectionRecord("twitter", connectionKey.getProviderUserId(), (long) i + 1, null, null, null, "token", "secret", null, null)
+					.copyTo(entity);
+			entities.add(entity);
+		}
+		DatastoreServiceFactory.getDatastoreService().put(entities);
+	}
+
+	/** Wraps the datastore so the size of every batch get is recorded. */
+	private DatastoreService recordBatchGets(final DatastoreService datastore) {
+		return (DatastoreService) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DatastoreService.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						if (method.getName().equals("get") && args.length == 1 && args[0] instanceof Collection) {
+							batchGetSizes.add(((Collection<?>) args[0]).size());
+						}
+						try {
+							return method.invoke(datastore, args);
+						} catch (InvocationTargetException e) {
+							throw e.getTargetException();
+						}
+					}
+				});
+	}
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.twitter.api.Twitter;
+import org.springframework.social.twitter.connect.TwitterConnectionFactory;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class CachingConnectionRepositoryTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private final TwitterConnectionFactory twitter = new TwitterConnectionFactory("consumerKey", "consumerSecret");
+
+	private CachingConnectionRepository repository;
+
+	private int loads;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		ConnectionFactoryRegistry registry = new ConnectionFactoryRegistry();
+		registry.addConnectionFactory(twitter);
+		repository = new CachingConnectionRepository(new AppEngineConnectionRepository("alice", registry, Encryptors.noOpText(),
+				DatastoreServiceFactory.getDatastoreService(), "") {
+			@Override
+			List<ConnectionRecord> findConnectionRecords() {
+				loads++;
+				return super.findConnectionRecords();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void readsAreAnsweredFromOneLoad() {
+		repository.addConnection(createConnection("42", "Alice"));
+		loads = 0;
+		assertEquals(1, repository.findAllConnections().get("twitter").size());
+		assertEquals(1, repository.findConnections("twitter").size());
+		assertEquals(1, repository.findConnections(Twitter.class).size());
+		assertNotNull(repository.getConnection(new ConnectionKey("twitter", "42")));
+		assertNotNull(repository.findPrimaryConnection(Twitter.class));
+		assertEquals(1, repository.findConnectionSummaries().get("twitter").size());
+		assertEquals(1, loads);
+	}
+
+	@Test
+	public void addConnectionInvalidates() {
+		assertTrue(repository.findConnections("twitter").isEmpty());
+		repository.addConnection(createConnection("42", "Alice"));
+		assertEquals(1, repository.findConnections("twitter").size());
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void updateConnectionInvalidates() {
+		repository.addConnection(createConnection("42", "Alice"));
+		assertEquals("Alice", repository.getConnection(new ConnectionKey("twitter", "42")).getDisplayName());
+		repository.updateConnection(createConnection("42", "Alice Smith"));
+		assertEquals("Alice Smith", repository.getConnection(new ConnectionKey("twitter", "42")).getDisplayName());
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void removeConnectionInvalidates() {
+		repository.addConnection(createConnection("42", "Alice"));
+		repository.addConnection(createConnection("43", "Alice again"));
+		assertEquals(2, repository.findConnections("twitter").size());
+		repository.removeConnection(new ConnectionKey("twitter", "42"));
+		List<Connection<?>> connections = repository.findConnections("twitter");
+		assertEquals(1, connections.size());
+		assertEquals("43", connections.get(0).getKey().getProviderUserId());
+		assertEquals(2, loads);
+	}
+
+	@Test
+	public void removeConnectionsInvalidates() {
+		repository.addConnection(createConnection("42", "Alice"));
+		repository.addConnection(createConnection("43", "Alice again"));
+		assertEquals(2, repository.findConnections("twitter").size());
+		repository.removeConnections("twitter");
+		assertTrue(repository.findConnections("twitter").isEmpty());
+		assertEquals(2, loads);
+	}
+
+	private Connection<Twitter> createConnection(String providerUserId, String displayName) {
+		return twitter.createConnection(new ConnectionData("twitter", providerUserId, displayName, null, null,
+				"accessToken", "secret", null, null));
+	}
+
+}
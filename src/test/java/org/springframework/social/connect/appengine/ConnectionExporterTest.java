@@ -0,0 +1,167 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.connect.ConnectionKey;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class ConnectionExporterTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+	private DatastoreService datastore;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void entryFormat() throws IOException {
+		ConnectionRecord record = new ConnectionRecord("twitter", "42", 1L, "Alice", "http://twitter.com/alice",
+				"http://twitter.com/alice.png", "access", "secret", null, 1234L);
+		putConnection("alice", record);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(1, new ConnectionExporter(datastore).exportConnections(out, null, null));
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+		assertEquals(ConnectionExporter.ENTRY_TAG, in.read());
+		assertEquals("alice", in.readUTF());
+		assertRecordEquals(record, ConnectionRecordCodec.readRecord(in));
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void exportAndImportRoundTrip() throws IOException, EntityNotFoundException {
+		List<ConnectionRecord> records = new ArrayList<ConnectionRecord>();
+		for (int i = 0; i < 12; i++) {
+			ConnectionRecord record = new ConnectionRecord(i % 2 == 0 ? "twitter" : "facebook", "id" + i, i / 2 + 1,
+					"user " + i, null, null, "access" + i, i % 2 == 0 ? "secret" + i : null, null, i % 3 == 0 ? null : 1000L + i);
+			records.add(record);
+			putConnection("user" + i % 3, record);
+		}
+		ConnectionExporter exporter = new ConnectionExporter(datastore);
+		exporter.setPageSize(5);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(12, exporter.exportConnections(out, null, null));
+
+		ConnectionImporter importer = new ConnectionImporter(datastore);
+		importer.setBatchSize(5);
+		assertEquals(12, importer.deleteAllConnections());
+		assertEquals(0, count("UserConnection"));
+		assertEquals(12, importer.importConnections(new ByteArrayInputStream(out.toByteArray()), 0, null));
+		for (int i = 0; i < records.size(); i++) {
+			ConnectionRecord record = records.get(i);
+			Entity entity = datastore.get(KeyFactory.createKey(KeyFactory.createKey("User", "user" + i % 3), "UserConnection",
+					AppEngineConnectionRepository.createConnectionKeyName("user" + i % 3, record.getKey())));
+			assertRecordEquals(record, ConnectionRecord.fromEntity(entity));
+		}
+	}
+
+	@Test
+	public void importResumesAfterSkippedEntries() throws IOException {
+		for (int i = 0; i < 6; i++) {
+			putConnection("alice", new ConnectionRecord("twitter", "id" + i, i + 1, null, null, null, "access", null, null, null));
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ConnectionExporter(datastore).exportConnections(out, null, null);
+		ConnectionImporter importer = new ConnectionImporter(datastore);
+		importer.deleteAllConnections();
+
+		importer.setBatchSize(4);
+		final List<Long> positions = new ArrayList<Long>();
+		long imported = importer.importConnections(new ByteArrayInputStream(out.toByteArray()), 2, new ConnectionImporter.ImportListener() {
+			public void batchImported(long position, long importedCount) {
+				positions.add(position);
+			}
+		});
+		assertEquals(4, imported);
+		assertEquals(Arrays.asList(6L), positions);
+		assertEquals(4, count("UserConnection"));
+	}
+
+	@Test(expected = IOException.class)
+	public void importRejectsUnknownTag() throws IOException {
+		new ConnectionImporter(datastore).importConnections(new ByteArrayInputStream(new byte[] { 9 }), 0, null);
+	}
+
+	@Test
+	public void importBumpsUserVersion() throws IOException, EntityNotFoundException {
+		putConnection("alice", new ConnectionRecord("twitter", "42", 1L, null, null, null, "access", null, null, null));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new ConnectionExporter(datastore).exportConnections(out, null, null);
+		new ConnectionImporter(datastore).importConnections(new ByteArrayInputStream(out.toByteArray()), 0, null);
+		Entity user = datastore.get(KeyFactory.createKey("User", "alice"));
+		assertEquals(1L, user.getProperty("version"));
+		assertNull(user.getProperty("connections"));
+	}
+
+	private void putConnection(String userId, ConnectionRecord record) {
+		ConnectionKey key = record.getKey();
+		Entity entity = new Entity("UserConnection", AppEngineConnectionRepository.createConnectionKeyName(userId, key),
+				KeyFactory.createKey("User", userId));
+		record.copyTo(entity);
+		datastore.put(entity);
+	}
+
+	private int count(String kind) {
+		return datastore.prepare(new Query(kind)).countEntities(FetchOptions.Builder.withDefaults());
+	}
+
+	private static void assertRecordEquals(ConnectionRecord expected, ConnectionRecord actual) {
+		assertEquals(expected.getProviderId(), actual.getProviderId());
+		assertEquals(expected.getProviderUserId(), actual.getProviderUserId());
+		assertEquals(expected.getRank(), actual.getRank());
+		assertEquals(expected.getDisplayName(), actual.getDisplayName());
+		assertEquals(expected.getProfileUrl(), actual.getProfileUrl());
+		assertEquals(expected.getImageUrl(), actual.getImageUrl());
+		assertEquals(expected.getAccessToken(), actual.getAccessToken());
+		assertEquals(expected.getSecret(), actual.getSecret());
+		assertEquals(expected.getRefreshToken(), actual.getRefreshToken());
+		assertEquals(expected.getExpireTime(), actual.getExpireTime());
+	}
+
+}
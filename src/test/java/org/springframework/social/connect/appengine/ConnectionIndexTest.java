@@ -0,0 +1,217 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.util.MultiValueMap;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class ConnectionIndexTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy());
+
+	private DatastoreService datastore;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void addAndRemoveUserIds() {
+		ConnectionIndex index = new ConnectionIndex(datastore, "", true, null);
+		ConnectionKey key = new ConnectionKey("twitter", "42");
+		addUserId(index, key, "alice");
+		addUserId(index, key, "bob");
+		addUserId(index, key, "alice");
+		assertEquals(Arrays.asList("alice", "bob"), index.findUserIds(key));
+		removeUserId(index, key, "alice");
+		assertEquals(Arrays.asList("bob"), index.findUserIds(key));
+		removeUserId(index, key, "bob");
+		assertEquals(Collections.emptyList(), index.findUserIds(key));
+		assertEquals(0, count("UserConnectionIndex"));
+	}
+
+	@Test
+	public void incompleteIndexIsNotRead() {
+		ConnectionIndex index = new ConnectionIndex(datastore, "", false, null);
+		ConnectionKey key = new ConnectionKey("twitter", "42");
+		addUserId(index, key, "alice");
+		assertNull(index.findUserIds(key));
+	}
+
+	@Test
+	public void cachedLookupsAreServedUntilEvicted() {
+		ConnectionIndex index = new ConnectionIndex(datastore, "", true, new LocalConnectionCache(100, 60000L));
+		ConnectionKey key = new ConnectionKey("twitter", "42");
+		assertEquals(Collections.emptyList(), index.findUserIds(key));
+		addUserId(index, key, "alice");
+		assertEquals(Collections.emptyList(), index.findUserIds(key));
+		index.evict(Collections.singleton(key));
+		assertEquals(Arrays.asList("alice"), index.findUserIds(key));
+	}
+
+	@Test
+	public void lookupReadBeforeAWriteIsNotCachedAfterIt() {
+		final ConnectionKey key = new ConnectionKey("twitter", "42");
+		final ConnectionIndex writer = new ConnectionIndex(datastore, "", true, null);
+		final ConnectionCache cache = new LocalConnectionCache(100, 60000L);
+		// the write commits and evicts between the lookup's get and its caching of what it got
+		DatastoreService interleaved = (DatastoreService) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { DatastoreService.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						try {
+							return method.invoke(datastore, args);
+						} catch (InvocationTargetException e) {
+							throw e.getTargetException();
+						} finally {
+							if (method.getName().equals("get") && args.length == 1) {
+								addUserId(writer, key, "alice");
+								new ConnectionIndex(datastore, "", true, cache).evict(Collections.singleton(key));
+							}
+						}
+					}
+				});
+		assertEquals(Collections.emptyList(), new ConnectionIndex(interleaved, "", true, cache).findUserIds(key));
+		assertEquals(Arrays.asList("alice"), new ConnectionIndex(datastore, "", true, cache).findUserIds(key));
+	}
+
+	@Test
+	public void backfillIndexesExistingConnectionsAndMarksComplete() {
+		putConnection("alice", "twitter", "42");
+		putConnection("bob", "twitter", "42");
+		putConnection("carol", "twitter", "42");
+		putConnection("alice", "facebook", "7");
+		putConnection("dave", "twitter", "9");
+		ConnectionIndex index = new ConnectionIndex(datastore, "", false, null);
+		assertFalse(index.isMarkedComplete());
+		int pages = backfill(index, 2);
+		assertEquals(3, pages);
+		assertTrue(index.isMarkedComplete());
+
+		ConnectionIndex complete = new ConnectionIndex(datastore, "", true, null);
+		assertEquals(new HashSet<String>(Arrays.asList("alice", "bob", "carol")),
+				new HashSet<String>(complete.findUserIds(new ConnectionKey("twitter", "42"))));
+		assertEquals(Arrays.asList("alice"), complete.findUserIds(new ConnectionKey("facebook", "7")));
+		assertEquals(Arrays.asList("dave"), complete.findUserIds(new ConnectionKey("twitter", "9")));
+	}
+
+	@Test
+	public void backfillMayRunAgain() {
+		putConnection("alice", "twitter", "42");
+		putConnection("bob", "twitter", "42");
+		ConnectionIndex index = new ConnectionIndex(datastore, "", true, null);
+		backfill(index, 1);
+		backfill(index, 10);
+		assertEquals(2, index.findUserIds(new ConnectionKey("twitter", "42")).size());
+	}
+
+	@Test
+	public void lookupsQueryUntilBackfilled() {
+		putConnection("alice", "twitter", "42");
+		AppEngineUsersConnectionRepository repository = new AppEngineUsersConnectionRepository(new ConnectionFactoryRegistry(),
+				Encryptors.noOpText(), datastore);
+		repository.setConnectionIndexEnabled(true);
+		MultiValueMap<String, String> userIds = repository.findUserIdsByProviderUserId("twitter", Collections.singleton("42"));
+		assertEquals(Arrays.asList("alice"), userIds.get("42"));
+
+		Cursor cursor = null;
+		do {
+			cursor = repository.backfillConnectionIndex(cursor, 10);
+		} while (cursor != null);
+		// a connection deleted behind the index's back shows that lookups now read the index
+		datastore.delete(KeyFactory.createKey(KeyFactory.createKey("User", "alice"), "UserConnection",
+				AppEngineConnectionRepository.createConnectionKeyName("alice", new ConnectionKey("twitter", "42"))));
+		userIds = repository.findUserIdsByProviderUserId("twitter", Collections.singleton("42"));
+		assertEquals(Arrays.asList("alice"), userIds.get("42"));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void backfillRequiresEnabledIndex() {
+		new AppEngineUsersConnectionRepository(new ConnectionFactoryRegistry(), Encryptors.noOpText(), datastore)
+				.backfillConnectionIndex(null, 10);
+	}
+
+	private int backfill(ConnectionIndex index, int pageSize) {
+		int pages = 0;
+		Cursor cursor = null;
+		do {
+			cursor = index.backfill("UserConnection", cursor, pageSize);
+			pages++;
+		} while (cursor != null);
+		return pages;
+	}
+
+	private void addUserId(ConnectionIndex index, ConnectionKey key, String userId) {
+		Transaction txn = datastore.beginTransaction();
+		index.addUserId(txn, key, userId);
+		txn.commit();
+	}
+
+	private void removeUserId(ConnectionIndex index, ConnectionKey key, String userId) {
+		Transaction txn = datastore.beginTransaction();
+		index.removeUserId(txn, Collections.singleton(key), userId);
+		txn.commit();
+	}
+
+	private void putConnection(String userId, String providerId, String providerUserId) {
+		ConnectionKey key = new ConnectionKey(providerId, providerUserId);
+		Entity entity = new Entity("UserConnection", AppEngineConnectionRepository.createConnectionKeyName(userId, key),
+				KeyFactory.createKey("User", userId));
+		new ConnectionRecord(providerId, providerUserId, 1L, null, null, null, "token", null, null, null).copyTo(entity);
+		datastore.put(entity);
+	}
+
+	private int count(String kind) {
+		return datastore.prepare(new Query(kind)).countEntities(FetchOptions.Builder.withDefaults());
+	}
+
+}
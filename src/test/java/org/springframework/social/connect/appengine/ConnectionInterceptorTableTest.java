@@ -0,0 +1,127 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.intercept.ConnectionInterceptor;
+import org.springframework.social.connect.intercept.ConnectionInterceptorAdapter;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.facebook.api.Facebook;
+import org.springframework.social.facebook.connect.FacebookConnectionFactory;
+import org.springframework.social.twitter.api.Twitter;
+import org.springframework.social.twitter.connect.TwitterConnectionFactory;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class ConnectionInterceptorTableTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private final TwitterConnectionFactory twitter = new TwitterConnectionFactory("consumerKey", "consumerSecret");
+
+	private final FacebookConnectionFactory facebook = new FacebookConnectionFactory("appId", "appSecret");
+
+	private final RecordingInterceptor<Twitter> twitterInterceptor = new RecordingInterceptor<Twitter>() {};
+
+	private final RecordingInterceptor<Twitter> secondTwitterInterceptor = new RecordingInterceptor<Twitter>() {};
+
+	private final RecordingInterceptor<Facebook> facebookInterceptor = new RecordingInterceptor<Facebook>() {};
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void interceptorsAreLookedUpByApiType() {
+		ConnectionInterceptorTable table = ConnectionInterceptorTable.EMPTY.with(
+				Arrays.<ConnectionInterceptor<?>>asList(twitterInterceptor, facebookInterceptor, secondTwitterInterceptor));
+		assertEquals(Arrays.<ConnectionInterceptor<?>>asList(twitterInterceptor, secondTwitterInterceptor), table.interceptorsFor(twitter));
+		assertEquals(Collections.<ConnectionInterceptor<?>>singletonList(facebookInterceptor), table.interceptorsFor(facebook));
+	}
+
+	@Test
+	public void interceptorsOfAFactoryAreResolvedOnce() {
+		ConnectionInterceptorTable table = ConnectionInterceptorTable.EMPTY.with(
+				Collections.<ConnectionInterceptor<?>>singletonList(twitterInterceptor));
+		List<ConnectionInterceptor<?>> interceptors = table.interceptorsFor(twitter);
+		assertSame(interceptors, table.interceptorsFor(new TwitterConnectionFactory("otherKey", "otherSecret")));
+		assertTrue(table.interceptorsFor(facebook).isEmpty());
+		assertSame(table.interceptorsFor(facebook), table.interceptorsFor(facebook));
+	}
+
+	@Test
+	public void addingInterceptorsBuildsANewTable() {
+		ConnectionInterceptorTable table = ConnectionInterceptorTable.EMPTY.with(
+				Collections.<ConnectionInterceptor<?>>singletonList(twitterInterceptor));
+		assertSame(table, table.with(Collections.<ConnectionInterceptor<?>>emptyList()));
+		ConnectionInterceptorTable extended = table.with(Collections.<ConnectionInterceptor<?>>singletonList(secondTwitterInterceptor));
+		assertEquals(1, table.interceptorsFor(twitter).size());
+		assertEquals(2, extended.interceptorsFor(twitter).size());
+		assertTrue(ConnectionInterceptorTable.EMPTY.interceptorsFor(twitter).isEmpty());
+	}
+
+	@Test
+	public void repositoriesShareTheInterceptors() {
+		ConnectionFactoryRegistry registry = new ConnectionFactoryRegistry();
+		registry.addConnectionFactory(twitter);
+		AppEngineUsersConnectionRepository usersConnectionRepository = new AppEngineUsersConnectionRepository(registry,
+				Encryptors.noOpText(), DatastoreServiceFactory.getDatastoreService());
+		usersConnectionRepository.addInterceptor(twitterInterceptor);
+		usersConnectionRepository.addInterceptor(facebookInterceptor);
+		usersConnectionRepository.createConnectionRepository("alice").addConnection(createConnection("1"));
+		usersConnectionRepository.createConnectionRepository("bob").addConnection(createConnection("2"));
+		assertEquals(Arrays.asList("alice", "bob"), twitterInterceptor.created);
+		assertTrue(facebookInterceptor.created.isEmpty());
+	}
+
+	private Connection<Twitter> createConnection(String providerUserId) {
+		return twitter.createConnection(new ConnectionData("twitter", providerUserId, null, null, null, "accessToken", "secret", null, null));
+	}
+
+	private static class RecordingInterceptor<A> extends ConnectionInterceptorAdapter<A> {
+
+		private final List<String> created = new ArrayList<String>();
+
+		@Override
+		public void afterCreate(String userId, Connection<A> connection) {
+			created.add(userId);
+		}
+
+	}
+
+}
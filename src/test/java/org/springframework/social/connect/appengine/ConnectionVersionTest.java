@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.Encryptors;
+import org.springframework.social.cache.ValueCache;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.facebook.api.Facebook;
+import org.springframework.social.facebook.connect.FacebookConnectionFactory;
+import org.springframework.social.twitter.api.Twitter;
+import org.springframework.social.twitter.connect.TwitterConnectionFactory;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class ConnectionVersionTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(), new LocalMemcacheServiceTestConfig());
+
+	private Key userKey;
+
+	private DatastoreService datastore;
+
+	private ConnectionCache connectionCache;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		userKey = KeyFactory.createKey("User", "alice");
+		connectionCache = new MemcacheConnectionCache(MemcacheServiceFactory.getMemcacheService(), 600);
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void importPublishesNewVersion() throws IOException {
+		putConnection("twitter", "1", 1L);
+		AppEngineConnectionRepository repository = createRepository();
+		assertEquals(1, repository.findConnectionRecords().size());
+		importConnection("twitter", "2");
+		assertEquals(1L, connectionCache.get(AppEngineConnectionRepository.getVersionCacheKey(userKey)));
+		assertEquals(2, repository.findConnectionRecords().size());
+	}
+
+	@Test
+	public void versionIsReadFromDatastoreOnCacheMiss() throws IOException {
+		putConnection("twitter", "1", 1L);
+		AppEngineConnectionRepository repository = createRepository();
+		assertEquals(1, repository.findConnectionRecords().size());
+		importConnection("twitter", "2");
+		connectionCache.remove(AppEngineConnectionRepository.getVersionCacheKey(userKey));
+		assertEquals(2, repository.findConnectionRecords().size());
+		assertEquals(1L, connectionCache.get(AppEngineConnectionRepository.getVersionCacheKey(userKey)));
+	}
+
+	@Test
+	public void providerLookupsAreServedFromCachedRecords() {
+		putConnection("facebook", "7", 1L);
+		putConnection("twitter", "1", 1L);
+		putConnection("twitter", "2", 2L);
+		AppEngineConnectionRepository repository = createRepository();
+		assertEquals(3, repository.findConnectionRecords().size());
+		// written behind the repository's back, so only a lookup that skips the cached records sees it
+		putConnection("twitter", "3", 3L);
+		List<Connection<?>> connections = repository.findConnections("twitter");
+		assertEquals(2, connections.size());
+		assertEquals(new ConnectionKey("twitter", "1"), connections.get(0).getKey());
+		assertEquals(new ConnectionKey("twitter", "2"), connections.get(1).getKey());
+		assertEquals(2, repository.findConnections(Twitter.class).size());
+		assertEquals(new ConnectionKey("twitter", "1"), repository.findPrimaryConnection(Twitter.class).getKey());
+		assertEquals(new ConnectionKey("facebook", "7"), repository.getPrimaryConnection(Facebook.class).getKey());
+		assertTrue(repository.findConnections("linkedin").isEmpty());
+	}
+
+	@Test
+	public void memcacheVersionNeverGoesBackwards() {
+		assertVersionNeverGoesBackwards(connectionCache);
+	}
+
+	@Test
+	public void localVersionNeverGoesBackwards() {
+		assertVersionNeverGoesBackwards(new LocalConnectionCache(100, 60000L));
+	}
+
+	private void assertVersionNeverGoesBackwards(ValueCache cache) {
+		String key = AppEngineConnectionRepository.getVersionCacheKey(userKey);
+		assertNull(cache.get(key));
+		cache.putIfGreater(key, 5L);
+		cache.putIfGreater(key, 7L);
+		assertEquals(7L, cache.get(key));
+		cache.putIfGreater(key, 6L);
+		assertEquals(7L, cache.get(key));
+	}
+
+	private AppEngineConnectionRepository createRepository() {
+		ConnectionFactoryRegistry registry = new ConnectionFactoryRegistry();
+		registry.addConnectionFactory(new TwitterConnectionFactory("consumerKey", "consumerSecret"));
+		registry.addConnectionFactory(new FacebookConnectionFactory("appId", "appSecret"));
+		AppEngineConnectionRepository repository = new AppEngineConnectionRepository("alice", registry,
+				Encryptors.noOpText(), datastore, "");
+		repository.setConnectionCache(connectionCache);
+		return repository;
+	}
+
+	private void putConnection(String providerId, String providerUserId, long rank) {
+		Entity entity = new Entity("UserConnection",
+				AppEngineConnectionRepository.createConnectionKeyName("alice", new ConnectionKey(providerId, providerUserId)), userKey);
+		new ConnectionRecord(providerId, providerUserId, rank, null, null, null, "token", null, null, null).copyTo(entity);
+		datastore.put(entity);
+	}
+
+	private void importConnection(String providerId, String providerUserId) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(ConnectionExporter.ENTRY_TAG);
+		out.writeUTF("alice");
+		ConnectionRecordCodec.writeRecord(out, new ConnectionRecord(providerId, providerUserId, 2L, null, null, null, "token", null, null, null));
+		ConnectionImporter importer = new ConnectionImporter(datastore);
+		importer.setConnectionCache(connectionCache);
+		importer.importConnections(new ByteArrayInputStream(bytes.toByteArray()), 0, null);
+	}
+
+}
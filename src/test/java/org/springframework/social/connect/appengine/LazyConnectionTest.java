@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.connect.appengine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.encrypt.TextEncryptor;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionData;
+import org.springframework.social.connect.ConnectionKey;
+import org.springframework.social.connect.support.ConnectionFactoryRegistry;
+import org.springframework.social.twitter.api.Twitter;
+import org.springframework.social.twitter.connect.TwitterConnectionFactory;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class LazyConnectionTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private final TwitterConnectionFactory twitter = new TwitterConnectionFactory("consumerKey", "consumerSecret");
+
+	private final ConnectionFactoryRegistry registry = new ConnectionFactoryRegistry();
+
+	private final CountingTextEncryptor textEncryptor = new CountingTextEncryptor();
+
+	private DatastoreService datastore;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		registry.addConnectionFactory(twitter);
+		createRepository().addConnection(twitter.createConnection(new ConnectionData("twitter", "42", "Alice",
+				"http://twitter.com/alice", "http://twitter.com/alice.png", "accessToken", "secret", null, null)));
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void storedPropertiesDoNotDecrypt() {
+		Connection<?> connection = createRepository().getConnection(new ConnectionKey("twitter", "42"));
+		assertEquals(new ConnectionKey("twitter", "42"), connection.getKey());
+		assertEquals("Alice", connection.getDisplayName());
+		assertEquals("http://twitter.com/alice", connection.getProfileUrl());
+		assertEquals("http://twitter.com/alice.png", connection.getImageUrl());
+		assertEquals(1, createRepository().findAllConnections().get("twitter").size());
+		assertEquals(0, textEncryptor.decrypted);
+	}
+
+	@Test
+	public void tokensAreDecryptedOnceWhenNeeded() {
+		Connection<Twitter> connection = createRepository().getPrimaryConnection(Twitter.class);
+		ConnectionData data = connection.createData();
+		assertEquals("accessToken", data.getAccessToken());
+		assertEquals("secret", data.getSecret());
+		int decrypted = textEncryptor.decrypted;
+		assertTrue(decrypted > 0);
+		assertNotNull(connection.getApi());
+		connection.createData();
+		assertEquals(decrypted, textEncryptor.decrypted);
+	}
+
+	@Test
+	public void serializesTheActualConnection() throws Exception {
+		Connection<?> connection = createRepository().getConnection(new ConnectionKey("twitter", "42"));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(connection);
+		out.close();
+		Object copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+		assertTrue(copy.getClass().getName(), !(copy instanceof LazyConnection));
+		assertEquals(new ConnectionKey("twitter", "42"), ((Connection<?>) copy).getKey());
+	}
+
+	private AppEngineConnectionRepository createRepository() {
+		return new AppEngineConnectionRepository("alice", registry, textEncryptor, datastore, "");
+	}
+
+	/** Stores texts reversed, and counts decryptions. */
+	private static class CountingTextEncryptor implements TextEncryptor {
+
+		private int decrypted;
+
+		public String encrypt(String text) {
+			return new StringBuilder(text).reverse().toString();
+		}
+
+		public String decrypt(String encryptedText) {
+			decrypted++;
+			return new StringBuilder(encryptedText).reverse().toString();
+		}
+
+	}
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.account;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.cache.LocalCache;
+import org.springframework.social.cache.ValueCache;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class AccountStoreTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private final ValueCache cache = new LocalCache(100, 60000L);
+
+	private DatastoreService datastore;
+
+	private AccountStore writer;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		writer = createStore(datastore);
+		writer.createAccount("alice", Collections.<String, Object>singletonMap("firstName", "Alice"));
+		writer.createAccount("bob", Collections.<String, Object>singletonMap("firstName", "Bob"));
+		// as if the markers the writes left had expired
+		cache.remove("alice");
+		cache.remove("bob");
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void cachedAccountsAreServedUntilWritten() {
+		assertEquals("Alice", writer.findAccount("alice").getProperty("firstName"));
+		datastore.delete(KeyFactory.createKey("account", "alice"));
+		assertEquals("Alice", writer.findAccount("alice").getProperty("firstName"));
+		writer.evict("alice");
+		assertNull(writer.findAccount("alice"));
+	}
+
+	@Test
+	public void writtenAccountsAreNotCachedWhileMarked() {
+		writer.updateAccount("alice", Collections.<String, Object>singletonMap("firstName", "Alicia"));
+		assertEquals("Alicia", writer.findAccount("alice").getProperty("firstName"));
+		datastore.delete(KeyFactory.createKey("account", "alice"));
+		assertNull(writer.findAccount("alice"));
+	}
+
+	@Test
+	public void accountReadBeforeAWriteIsNotCachedAfterIt() {
+		AccountStore reader = createStore(interleave(datastore, new Runnable() {
+			public void run() {
+				writer.updateAccount("alice", Collections.<String, Object>singletonMap("firstName", "Alicia"));
+			}
+		}));
+		assertEquals("Alice", reader.findAccount("alice").getProperty("firstName"));
+		assertEquals("Alicia", writer.findAccount("alice").getProperty("firstName"));
+	}
+
+	@Test
+	public void accountsReadBeforeAWriteAreNotCachedAfterIt() {
+		AccountStore reader = createStore(interleave(datastore, new Runnable() {
+			public void run() {
+				writer.updateAccount("bob", Collections.<String, Object>singletonMap("firstName", "Robert"));
+			}
+		}));
+		Map<String, Entity> accounts = reader.findAccounts(Arrays.asList("alice", "bob"));
+		assertEquals(Arrays.asList("alice", "bob"), Arrays.asList(accounts.keySet().toArray()));
+		assertEquals("Bob", accounts.get("bob").getProperty("firstName"));
+		assertEquals("Robert", writer.findAccount("bob").getProperty("firstName"));
+		assertEquals("Robert", writer.findAccounts(Arrays.asList("alice", "bob")).get("bob").getProperty("firstName"));
+	}
+
+	private AccountStore createStore(DatastoreService datastore) {
+		AccountStore store = new AccountStore(datastore);
+		store.setCache(cache);
+		return store;
+	}
+
+	/** Wraps the datastore so that the given write commits right after the first get outside a transaction. */
+	private static DatastoreService interleave(final DatastoreService datastore, final Runnable write) {
+		return (DatastoreService) Proxy.newProxyInstance(AccountStoreTest.class.getClassLoader(),
+				new Class<?>[] { DatastoreService.class }, new InvocationHandler() {
+					private boolean written;
+
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						try {
+							return method.invoke(datastore, args);
+						} catch (InvocationTargetException e) {
+							throw e.getTargetException();
+						} finally {
+							if (!written && method.getName().equals("get") && args.length == 1) {
+								written = true;
+								write.run();
+							}
+						}
+					}
+				});
+	}
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.social.ApiException;
+import org.springframework.social.RateLimitExceededException;
+import org.springframework.social.ServerException;
+import org.springframework.social.connect.Connection;
+import org.springframework.social.connect.ConnectionRepository;
+import org.springframework.social.connect.UsersConnectionRepository;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+
+public class StatusOutboxTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+			new LocalDatastoreServiceTestConfig().setApplyAllHighRepJobPolicy(),
+			new LocalTaskQueueTestConfig().setQueueXmlPath("src/main/webapp/WEB-INF/queue.xml").setDisableAutoTaskExecution(true));
+
+	private DatastoreService datastore;
+
+	private Connection<?> connection;
+
+	private ConnectionRepository connectionRepository;
+
+	private StatusOutbox outbox;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		datastore = DatastoreServiceFactory.getDatastoreService();
+		connection = mock(Connection.class);
+		connectionRepository = mock(ConnectionRepository.class);
+		when(connectionRepository.findConnections("twitter")).thenReturn(Collections.<Connection<?>>singletonList(connection));
+		UsersConnectionRepository usersConnectionRepository = mock(UsersConnectionRepository.class);
+		when(usersConnectionRepository.createConnectionRepository("alice")).thenReturn(connectionRepository);
+		outbox = new StatusOutbox(datastore, usersConnectionRepository);
+		outbox.setBackoffMillis(60000L, 240000L);
+	}
+
+	@After
+	public void tearDown() {
+		helper.tearDown();
+	}
+
+	@Test
+	public void addingEnqueuesDispatch() {
+		outbox.addStatus("alice", "twitter", "hello");
+		assertEquals(1, getTaskCount());
+		assertEquals(1, outbox.findPending("alice", "twitter").size());
+		assertEquals(0, outbox.findPending("alice", "facebook").size());
+	}
+
+	@Test
+	public void dispatchSendsAndRemovesPosts() {
+		outbox.addStatus("alice", "twitter", "hello");
+		outbox.addStatus("alice", "twitter", "world");
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		verify(connection).updateStatus("hello");
+		verify(connection).updateStatus("world");
+		assertTrue(outbox.findPending("alice", "twitter").isEmpty());
+	}
+
+	@Test
+	public void dispatchSendsABatchAndSchedulesTheRest() {
+		outbox.setBatchSize(1);
+		outbox.addStatus("alice", "twitter", "hello");
+		outbox.addStatus("alice", "twitter", "world");
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		assertEquals(1, outbox.findPending("alice", "twitter").size());
+		assertEquals(3, getTaskCount());
+	}
+
+	@Test
+	public void serverErrorIsRetriedWithBackoff() {
+		doThrow(new ServerException("twitter", "unavailable")).when(connection).updateStatus("hello");
+		outbox.addStatus("alice", "twitter", "hello");
+		long before = System.currentTimeMillis();
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		OutboxItem item = outbox.findPending("alice", "twitter").get(0);
+		assertEquals(1, item.getAttempts());
+		assertNull(item.getLeasedUntil());
+		// equal jitter: between half and all of the first backoff
+		long delay = item.getNotBefore().getTime() - before;
+		assertTrue(String.valueOf(delay), delay >= 30000L && delay <= 61000L);
+		assertEquals(2, getTaskCount());
+
+		// not due yet, so the next dispatch leaves it alone
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		assertEquals(1, outbox.findPending("alice", "twitter").get(0).getAttempts());
+	}
+
+	@Test
+	public void backoffDoublesUpToTheMaximum() {
+		doThrow(new ServerException("twitter", "unavailable")).when(connection).updateStatus("hello");
+		outbox.addStatus("alice", "twitter", "hello");
+		long[] maxDelays = { 60000L, 120000L, 240000L, 240000L };
+		for (int attempt = 1; attempt <= maxDelays.length; attempt++) {
+			makeDue(outbox.findPending("alice", "twitter").get(0));
+			long before = System.currentTimeMillis();
+			outbox.dispatch("alice", "twitter");
+			OutboxItem item = outbox.findPending("alice", "twitter").get(0);
+			assertEquals(attempt, item.getAttempts());
+			long delay = item.getNotBefore().getTime() - before;
+			long maxDelay = maxDelays[attempt - 1];
+			assertTrue(attempt + ": " + delay, delay >= maxDelay / 2 && delay <= maxDelay + 1000L);
+		}
+	}
+
+	@Test
+	public void postIsDroppedAfterMaxAttempts() {
+		outbox.setMaxAttempts(2);
+		doThrow(new ServerException("twitter", "unavailable")).when(connection).updateStatus("hello");
+		outbox.addStatus("alice", "twitter", "hello");
+		outbox.dispatch("alice", "twitter");
+		makeDue(outbox.findPending("alice", "twitter").get(0));
+		outbox.dispatch("alice", "twitter");
+		assertTrue(outbox.findPending("alice", "twitter").isEmpty());
+	}
+
+	@Test
+	public void rateLimitHoldsBackTheRestOfTheBatch() {
+		doThrow(new RateLimitExceededException("twitter")).when(connection).updateStatus("hello");
+		doThrow(new RateLimitExceededException("twitter")).when(connection).updateStatus("world");
+		outbox.addStatus("alice", "twitter", "hello");
+		outbox.addStatus("alice", "twitter", "world");
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		List<OutboxItem> pending = outbox.findPending("alice", "twitter");
+		assertEquals(2, pending.size());
+		// only the first post was tried
+		assertEquals(1, pending.get(0).getAttempts() + pending.get(1).getAttempts());
+	}
+
+	@Test
+	public void rejectedPostIsDropped() {
+		doThrow(new ApiException("twitter", "status is too long")).when(connection).updateStatus("hello");
+		outbox.addStatus("alice", "twitter", "hello");
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		assertTrue(outbox.findPending("alice", "twitter").isEmpty());
+	}
+
+	@Test
+	public void postIsDroppedWhenUserIsNoLongerConnected() {
+		when(connectionRepository.findConnections("twitter")).thenReturn(Collections.<Connection<?>>emptyList());
+		outbox.addStatus("alice", "twitter", "hello");
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		assertTrue(outbox.findPending("alice", "twitter").isEmpty());
+	}
+
+	@Test
+	public void leasedPostIsLeftToItsDispatch() {
+		OutboxItem item = outbox.addStatus("alice", "twitter", "hello");
+		setLeasedUntil(item, new Date(System.currentTimeMillis() + 60000L));
+		assertFalse(outbox.dispatch("alice", "twitter"));
+		verify(connection, never()).updateStatus("hello");
+		assertEquals(1, outbox.findPending("alice", "twitter").size());
+	}
+
+	@Test
+	public void lapsedLeaseIsTakenOver() {
+		OutboxItem item = outbox.addStatus("alice", "twitter", "hello");
+		setLeasedUntil(item, new Date(System.currentTimeMillis() - 1000L));
+		assertTrue(outbox.dispatch("alice", "twitter"));
+		verify(connection).updateStatus("hello");
+		assertTrue(outbox.findPending("alice", "twitter").isEmpty());
+	}
+
+	private void makeDue(OutboxItem item) {
+		Entity entity = get(item);
+		entity.setUnindexedProperty("notBefore", new Date(System.currentTimeMillis() - 1000L));
+		datastore.put(entity);
+	}
+
+	private void setLeasedUntil(OutboxItem item, Date leasedUntil) {
+		Entity entity = get(item);
+		entity.setUnindexedProperty("leasedUntil", leasedUntil);
+		datastore.put(entity);
+	}
+
+	private Entity get(OutboxItem item) {
+		try {
+			return datastore.get(item.getKey());
+		} catch (EntityNotFoundException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private int getTaskCount() {
+		return LocalTaskQueueTestConfig.getLocalTaskQueue().getQueueStateInfo().get(StatusPublisher.getQueue("twitter").getQueueName()).getCountTasks();
+	}
+
+}
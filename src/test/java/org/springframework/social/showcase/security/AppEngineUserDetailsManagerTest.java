@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.access.AccessDeniedException;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.crypto.password.NoOpPasswordEncoder;
+import org.springframework.social.cache.LocalCache;
+import org.springframework.social.showcase.account.AccountStore;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+public class AppEngineUserDetailsManagerTest {
+
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+	private AppEngineUserDetailsManager userDetailsManager;
+
+	@Before
+	public void setUp() {
+		helper.setUp();
+		userDetailsManager = new AppEngineUserDetailsManager(new AccountStore(DatastoreServiceFactory.getDatastoreService()),
+				NoOpPasswordEncoder.getInstance());
+		userDetailsManager.createUser(new User("alice", "secret", Collections.<GrantedAuthority>emptyList()));
+		userDetailsManager.createUser(new User("bob", "hunter2", Collections.<GrantedAuthority>emptyList()));
+	}
+
+	@After
+	public void tearDown() {
+		SecurityContextHolder.clearContext();
+		helper.tearDown();
+	}
+
+	@Test
+	public void changesThePasswordOfTheCurrentUser() {
+		signIn("alice");
+		userDetailsManager.changePassword("secret", "changed");
+		assertEquals("changed", userDetailsManager.loadUserByUsername("alice").getPassword());
+		assertEquals("hunter2", userDetailsManager.loadUserByUsername("bob").getPassword());
+	}
+
+	@Test
+	public void rejectsAWrongOldPassword() {
+		signIn("alice");
+		try {
+			userDetailsManager.changePassword("hunter2", "changed");
+			fail("expected BadCredentialsException");
+		} catch (BadCredentialsException e) {
+		}
+		assertEquals("secret", userDetailsManager.loadUserByUsername("alice").getPassword());
+	}
+
+	@Test(expected = AccessDeniedException.class)
+	public void requiresASignedInUser() {
+		userDetailsManager.changePassword("secret", "changed");
+	}
+
+	@Test
+	public void cachingManagerEvictsTheCurrentUser() {
+		CachingUserDetailsManager cachingManager = new CachingUserDetailsManager(userDetailsManager, new LocalCache(100, 60000));
+		assertEquals("secret", cachingManager.loadUserByUsername("alice").getPassword());
+		signIn("alice");
+		cachingManager.changePassword("secret", "changed");
+		assertEquals("changed", cachingManager.loadUserByUsername("alice").getPassword());
+	}
+
+	private void signIn(String username) {
+		SecurityContextHolder.getContext().setAuthentication(
+				new UsernamePasswordAuthenticationToken(username, null, Collections.<GrantedAuthority>emptyList()));
+	}
+
+}
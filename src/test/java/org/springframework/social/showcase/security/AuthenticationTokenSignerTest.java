@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+
+public class AuthenticationTokenSignerTest {
+
+	private static final long NOW = 1380000000L;
+
+	private final AuthenticationTokenSigner signer = new AuthenticationTokenSigner("secret");
+
+	private final List<GrantedAuthority> authorities = AuthorityUtils.createAuthorityList("ROLE_USER", "ROLE_ADMIN");
+
+	@Test
+	public void signAndVerify() {
+		String value = signer.sign("alice", NOW - 60, NOW + 3600, authorities);
+		AuthenticationTokenSigner.Token token = signer.verify(value, NOW);
+		assertNotNull(token);
+		assertEquals("alice", token.getUserId());
+		assertEquals(NOW - 60, token.getAuthenticatedAt());
+		assertEquals(NOW + 3600, token.getExpiresAt());
+		assertEquals(authorities, token.getAuthorities());
+	}
+
+	@Test
+	public void userIdsAndAuthoritiesAreEncoded() {
+		String userId = "al.ice@example.com \u00e9\u4e2d";
+		String value = signer.sign(userId, NOW, NOW + 3600, Collections.<GrantedAuthority>emptyList());
+		AuthenticationTokenSigner.Token token = signer.verify(value, NOW);
+		assertEquals(userId, token.getUserId());
+		assertEquals(Collections.emptyList(), token.getAuthorities());
+	}
+
+	@Test
+	public void expiredTokenIsRejected() {
+		String value = signer.sign("alice", NOW - 3600, NOW, authorities);
+		assertNotNull(signer.verify(value, NOW - 1));
+		assertNull(signer.verify(value, NOW));
+	}
+
+	@Test
+	public void tamperedTokenIsRejected() {
+		String value = signer.sign("alice", NOW, NOW + 3600, authorities);
+		String[] parts = value.split("\\.");
+		assertEquals(5, parts.length);
+		String forgedUser = signer.sign("mallory", NOW, NOW + 3600, authorities).split("\\.")[0];
+		assertNull(signer.verify(join(forgedUser, parts[1], parts[2], parts[3], parts[4]), NOW));
+		assertNull(signer.verify(join(parts[0], String.valueOf(NOW - 86400), parts[2], parts[3], parts[4]), NOW));
+		assertNull(signer.verify(join(parts[0], parts[1], String.valueOf(NOW + 86400), parts[3], parts[4]), NOW));
+		assertNull(signer.verify(join(parts[0], parts[1], parts[2], "", parts[4]), NOW));
+		char last = parts[4].charAt(parts[4].length() - 1);
+		String signature = parts[4].substring(0, parts[4].length() - 1) + (last == 'A' ? 'B' : 'A');
+		assertNull(signer.verify(join(parts[0], parts[1], parts[2], parts[3], signature), NOW));
+	}
+
+	@Test
+	public void tokenSignedWithAnotherKeyIsRejected() {
+		String value = new AuthenticationTokenSigner("another secret").sign("alice", NOW, NOW + 3600, authorities);
+		assertNull(signer.verify(value, NOW));
+	}
+
+	@Test
+	public void malformedTokensAreRejected() {
+		for (String value : Arrays.asList("", ".", "....", "alice", "YWxpY2U.1.2", "YWxpY2U.x.y.z.w", "YWxpY2U.1.99999999999999999999.z.w")) {
+			assertNull(value, signer.verify(value, NOW));
+		}
+	}
+
+	private static String join(String... parts) {
+		StringBuilder value = new StringBuilder();
+		for (String part : parts) {
+			if (value.length() > 0) {
+				value.append('.');
+			}
+			value.append(part);
+		}
+		return value.toString();
+	}
+
+}
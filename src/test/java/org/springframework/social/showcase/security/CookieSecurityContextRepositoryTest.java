@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.springframework.social.showcase.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.anyString;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.web.context.HttpRequestResponseHolder;
+
+public class CookieSecurityContextRepositoryTest {
+
+	private static final int TIME_TO_LIVE = 3600;
+
+	private static final int MAX_LIFETIME = 86400;
+
+	private final AuthenticationTokenSigner signer = new AuthenticationTokenSigner("secret");
+
+	private final List<GrantedAuthority> authorities = AuthorityUtils.createAuthorityList("ROLE_USER");
+
+	private CookieSecurityContextRepository repository;
+
+	private HttpServletRequest request;
+
+	private HttpServletResponse response;
+
+	private HttpRequestResponseHolder holder;
+
+	private long now;
+
+	@Before
+	public void setUp() {
+		repository = new CookieSecurityContextRepository(signer, TIME_TO_LIVE);
+		repository.setMaxLifetimeSeconds(MAX_LIFETIME);
+		request = mock(HttpServletRequest.class);
+		response = mock(HttpServletResponse.class);
+		when(request.getContextPath()).thenReturn("");
+		now = System.currentTimeMillis() / 1000;
+	}
+
+	@Test
+	public void signInIssuesToken() {
+		SecurityContext context = load();
+		context.setAuthentication(new UsernamePasswordAuthenticationToken("alice", null, authorities));
+		save(context);
+		AuthenticationTokenSigner.Token token = getIssuedToken();
+		assertEquals("alice", token.getUserId());
+		assertTrue(Math.abs(token.getAuthenticatedAt() - now) <= 1);
+		assertEquals(token.getAuthenticatedAt() + TIME_TO_LIVE, token.getExpiresAt());
+	}
+
+	@Test
+	public void freshTokenIsNotReissued() {
+		setToken(now - 60, now + TIME_TO_LIVE - 60);
+		save(load());
+		verify(response, never()).addHeader(anyString(), anyString());
+	}
+
+	@Test
+	public void reissuedTokenKeepsSignInTime() {
+		long authenticatedAt = now - 2 * TIME_TO_LIVE;
+		setToken(authenticatedAt, now + 60);
+		save(load());
+		AuthenticationTokenSigner.Token token = getIssuedToken();
+		assertEquals(authenticatedAt, token.getAuthenticatedAt());
+		assertTrue(token.getExpiresAt() - now >= TIME_TO_LIVE - 1);
+	}
+
+	@Test
+	public void reissuedTokenIsCappedAtMaxLifetime() {
+		long authenticatedAt = now - MAX_LIFETIME + 600;
+		setToken(authenticatedAt, now + 60);
+		save(load());
+		assertEquals(authenticatedAt + MAX_LIFETIME, getIssuedToken().getExpiresAt());
+	}
+
+	@Test
+	public void tokenAtMaxLifetimeIsNotReissued() {
+		long authenticatedAt = now - MAX_LIFETIME + 60;
+		setToken(authenticatedAt, authenticatedAt + MAX_LIFETIME);
+		save(load());
+		verify(response, never()).addHeader(anyString(), anyString());
+	}
+
+	@Test
+	public void signOutDeletesCookie() {
+		setToken(now - 60, now + TIME_TO_LIVE - 60);
+		load();
+		save(SecurityContextHolder.createEmptyContext());
+		ArgumentCaptor<String> header = ArgumentCaptor.forClass(String.class);
+		verify(response).addHeader(eq("Set-Cookie"), header.capture());
+		assertTrue(header.getValue(), header.getValue().startsWith(CookieSecurityContextRepository.DEFAULT_COOKIE_NAME + "=;"));
+		assertTrue(header.getValue(), header.getValue().contains("Max-Age=0"));
+	}
+
+	private void setToken(long authenticatedAt, long expiresAt) {
+		String value = signer.sign("alice", authenticatedAt, expiresAt, authorities);
+		when(request.getCookies()).thenReturn(new Cookie[] { new Cookie(CookieSecurityContextRepository.DEFAULT_COOKIE_NAME, value) });
+		// the repository keeps the verified token in a request attribute between loading and saving the context
+		when(request.getAttribute(anyString())).thenReturn(signer.verify(value, now));
+	}
+
+	private SecurityContext load() {
+		holder = new HttpRequestResponseHolder(request, response);
+		return repository.loadContext(holder);
+	}
+
+	private void save(SecurityContext context) {
+		repository.saveContext(context, request, holder.getResponse());
+	}
+
+	private AuthenticationTokenSigner.Token getIssuedToken() {
+		ArgumentCaptor<String> header = ArgumentCaptor.forClass(String.class);
+		verify(response).addHeader(eq("Set-Cookie"), header.capture());
+		String cookie = header.getValue();
+		String value = cookie.substring(cookie.indexOf('=') + 1, cookie.indexOf(';'));
+		return signer.verify(value, now);
+	}
+
+}